@@ -0,0 +1,26 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 缓存编解码配置
+ * 可选 json（hutool json 与原来的格式一致）/ kryo（二进制 带版本号）
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache.codec")
+public class CacheCodecProperties {
+    /**
+     * 默认的编解码
+     */
+    private String defaultCodec = "json";
+    /**
+     * 按key前缀单独配置 例如 "[cache:shop::]": kryo
+     */
+    private Map<String, String> prefixes = new HashMap<>();
+}
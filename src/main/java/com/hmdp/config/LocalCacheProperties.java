@@ -0,0 +1,40 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 本地缓存（L1）配置
+ * 每个key前缀对应一个独立的本地缓存 没有单独配置的前缀使用默认值
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache.local")
+public class LocalCacheProperties {
+    /**
+     * 是否开启本地缓存
+     */
+    private boolean enabled = false;
+    /**
+     * 默认的最大条目数
+     */
+    private long maximumSize = 10000;
+    /**
+     * 默认的过期时间 秒
+     */
+    private long expireSeconds = 60;
+    /**
+     * 按key前缀单独配置 例如 "[cache:shop::]": {maximum-size: 1000, expire-seconds: 30}
+     */
+    private Map<String, Spec> prefixes = new HashMap<>();
+
+    @Data
+    public static class Spec {
+        private Long maximumSize;
+        private Long expireSeconds;
+    }
+}
@@ -0,0 +1,39 @@
+package com.hmdp.config;
+
+import com.hmdp.dto.Result;
+import com.hmdp.interceptor.RefreshTokenInterceptor;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * 把RefreshTokenInterceptor续签的新token写入Result的token字段
+ * 前端只读取响应体 不读取响应头
+ */
+@RestControllerAdvice
+public class RenewedTokenAdvice implements ResponseBodyAdvice<Object> {
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        if (body instanceof Result && request instanceof ServletServerHttpRequest) {
+            Object renewed = ((ServletServerHttpRequest) request).getServletRequest()
+                    .getAttribute(RefreshTokenInterceptor.RENEWED_TOKEN_ATTRIBUTE);
+            if (renewed != null) {
+                ((Result) body).setToken(renewed.toString());
+            }
+        }
+        return body;
+    }
+}
@@ -0,0 +1,29 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 商铺缓存配置
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache.shop")
+public class ShopCacheProperties {
+    /**
+     * 是否使用逻辑过期模式 热点商铺在redis中永不过期 过期后异步重建
+     */
+    private boolean logicalExpire = false;
+    /**
+     * 逻辑过期时间 分钟
+     */
+    private long logicalExpireMinutes = 30;
+    /**
+     * 启动时预热的热点商铺id 大促前配置好 冷启动时不会有请求打到数据库
+     */
+    private List<Long> hotIds = new ArrayList<>();
+}
@@ -2,8 +2,8 @@ package com.hmdp.config;
 
 import com.hmdp.interceptor.LoginInterceptor;
 import com.hmdp.interceptor.RefreshTokenInterceptor;
+import com.hmdp.utils.LoginSessions;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
@@ -12,7 +12,7 @@ import javax.annotation.Resource;
 @Configuration
 public class SpringMvcConfig implements WebMvcConfigurer {
     @Resource
-    private RedisTemplate<String, Object> redisTemplate;
+    private LoginSessions loginSessions;
 
     /**
      * 添加拦截器
@@ -32,6 +32,6 @@ public class SpringMvcConfig implements WebMvcConfigurer {
                         "/update/**",
                         "/voucher/**"
                 ).order(1);
-        registry.addInterceptor(new RefreshTokenInterceptor(redisTemplate)).addPathPatterns("/**").order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(loginSessions)).addPathPatterns("/**").order(0);
     }
 }
@@ -0,0 +1,40 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.LocalCache;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存监控
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+    @Resource
+    private LocalCache localCache;
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    /**
+     * 查询各个本地缓存的命中/未命中/淘汰次数
+     */
+    @GetMapping("/stats")
+    public Result queryLocalCacheStats() {
+        return Result.ok(localCache.stats());
+    }
+
+    /**
+     * 查询各个布隆过滤器的容量/插入数/误判率
+     */
+    @GetMapping("/bloom/stats")
+    public Result queryBloomFilterStats() {
+        return Result.ok(idBloomFilters.stats());
+    }
+}
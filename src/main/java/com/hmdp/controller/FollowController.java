@@ -2,10 +2,12 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.service.IFollowGraphService;
 import com.hmdp.service.impl.FollowServiceImpl;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -20,6 +22,8 @@ import javax.annotation.Resource;
 public class FollowController {
     @Resource
     private FollowServiceImpl followService;
+    @Resource
+    private IFollowGraphService followGraphService;
     /**
      * 关注功能
      */
@@ -36,10 +40,41 @@ public class FollowController {
         return followService.isFollow(id);
     }
     /**
-     * 共同关注
+     * 批量判断是否关注 用于列表页
+     */
+    @GetMapping("/or/not")
+    public Result areFollowing(@RequestParam("ids") List<Long> ids){
+        return Result.ok(followService.areFollowing(ids));
+    }
+    /**
+     * 共同关注 分页
      */
     @GetMapping("/common/{id}")
-    public Result commonFollow(@PathVariable Long id){
-        return followService.commonFollow(id);
+    public Result commonFollow(@PathVariable Long id,
+                               @RequestParam(value = "current", defaultValue = "1") Integer current){
+        return followService.commonFollow(id, current);
+    }
+    /**
+     * 关注数和粉丝数
+     */
+    @GetMapping("/count/{id}")
+    public Result queryCounts(@PathVariable Long id){
+        return followGraphService.queryCounts(id);
+    }
+    /**
+     * 粉丝列表 滚动分页
+     */
+    @GetMapping("/followers/{id}")
+    public Result queryFollowers(@PathVariable Long id, @RequestParam("lastId") Long max,
+                                 @RequestParam(value = "offset", defaultValue = "0") Integer offset){
+        return followGraphService.queryFollowers(id, max, offset);
+    }
+    /**
+     * 关注列表 按用户id游标分页 第一页lastId传0 之后传上一页最后一个用户的id
+     */
+    @GetMapping("/following/{id}")
+    public Result queryFollowing(@PathVariable Long id,
+                                 @RequestParam(value = "lastId", defaultValue = "0") Long lastId){
+        return followGraphService.queryFollowing(id, lastId);
     }
 }
@@ -1,12 +1,9 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -64,6 +61,8 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param lastDistance 游标 上一页最后一个商铺的距离 与lastId同时传入时忽略current
+     * @param lastId 游标 上一页最后一个商铺的id
      * @return 商铺列表
      */
     @GetMapping("/of/type")
@@ -71,13 +70,15 @@ public class ShopController {
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current,
             @RequestParam(value = "x") Double x,
-            @RequestParam(value = "y") Double y
+            @RequestParam(value = "y") Double y,
+            @RequestParam(value = "lastDistance", required = false) Double lastDistance,
+            @RequestParam(value = "lastId", required = false) Long lastId
     ) {
-        return shopService.queryByType(typeId, current, x, y);
+        return shopService.queryByType(typeId, current, x, y, lastDistance, lastId);
     }
 
     /**
-     * 根据商铺名称关键字分页查询商铺信息
+     * 根据商铺名称/商圈关键字分页查询商铺信息 按匹配程度排序
      * @param name 商铺名称关键字
      * @param current 页码
      * @return 商铺列表
@@ -87,11 +88,6 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryByName(name, current);
     }
 }
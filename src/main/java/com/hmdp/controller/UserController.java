@@ -5,15 +5,17 @@ import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
-import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
+import com.hmdp.service.IUserCacheService;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilters;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
 /**
@@ -35,6 +37,12 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    @Resource
+    private IUserCacheService userCacheService;
+
     /**
      * 发送手机验证码
      */
@@ -59,8 +67,8 @@ public class UserController {
      * @return 无
      */
     @PostMapping("/logout")
-    public Result logout(){
-        return Result.ok();
+    public Result logout(HttpServletRequest request){
+        return userService.logout(request.getHeader("authorization"));
     }
 
     @GetMapping("/me")
@@ -72,12 +80,14 @@ public class UserController {
 
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId){
-        // 查询详情
-        UserInfo info = userInfoService.getById(userId);
-        if (info == null) {
+        // 查询详情 走缓存
+        UserInfo cached = userCacheService.getInfo(userId);
+        if (cached == null) {
             // 没有详情，应该是第一次查看详情
             return Result.ok();
         }
+        //缓存中的对象不能修改 复制一份
+        UserInfo info = BeanUtil.copyProperties(cached, UserInfo.class);
         info.setCreateTime(null);
         info.setUpdateTime(null);
         // 返回
@@ -85,12 +95,15 @@ public class UserController {
     }
     @GetMapping("{id}")
     public Result queryById(@PathVariable("id") Long userId){
-        // 查询用户信息
-        User user = userService.getById(userId);
-        if (user == null) {
+        //布隆过滤器判断不存在的id 直接返回
+        if (!idBloomFilters.mightContain(IdBloomFilters.USER, userId)) {
+            return Result.fail("用户不存在");
+        }
+        // 查询用户信息 走缓存
+        UserDTO userDTO = userCacheService.get(userId);
+        if (userDTO == null) {
             return Result.fail("用户不存在");
         }
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
         return Result.ok(userDTO);
     }
     /**
@@ -1,6 +1,7 @@
 package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -26,4 +27,12 @@ public class VoucherOrderController {
         return voucherOrderService.seckillVoucher(voucherId);
     }
 
+    /**
+     * 查询订单消息队列的pending/重试/死信数量
+     */
+    @GetMapping("stream/stats")
+    public Result queryOrderStreamStats() {
+        return voucherOrderService.queryOrderStreamStats();
+    }
+
 }
\ No newline at end of file
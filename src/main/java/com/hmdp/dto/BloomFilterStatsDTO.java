@@ -0,0 +1,27 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 布隆过滤器统计
+ */
+@Data
+public class BloomFilterStatsDTO {
+    private Boolean ready;
+    /**
+     * 已经加载到的最大id
+     */
+    private Long maxId;
+    private Long insertions;
+    private Long expectedInsertions;
+    private Long bitSize;
+    private Integer hashIterations;
+    /**
+     * 设定的误判率
+     */
+    private Double falseProbability;
+    /**
+     * 按当前置位比例估算的误判率
+     */
+    private Double estimatedFalseProbability;
+}
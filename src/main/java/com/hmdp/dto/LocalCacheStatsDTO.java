@@ -0,0 +1,15 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 本地缓存统计
+ */
+@Data
+public class LocalCacheStatsDTO {
+    private Long size;
+    private Long hitCount;
+    private Long missCount;
+    private Double hitRate;
+    private Long evictionCount;
+}
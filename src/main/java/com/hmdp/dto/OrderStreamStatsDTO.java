@@ -0,0 +1,30 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 秒杀订单消息队列统计
+ */
+@Data
+public class OrderStreamStatsDTO {
+    /**
+     * 消费者组中尚未确认的消息数
+     */
+    private Long pending;
+    /**
+     * 本节点从pending-list中认领重试的消息数
+     */
+    private Long retried;
+    /**
+     * 重试成功的消息数
+     */
+    private Long recovered;
+    /**
+     * 本节点转入死信队列的消息数
+     */
+    private Long dead;
+    /**
+     * 死信队列长度
+     */
+    private Long deadLetterSize;
+}
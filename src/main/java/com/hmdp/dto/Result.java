@@ -14,17 +14,21 @@ public class Result {
     private String errorMsg;
     private Object data;
     private Long total;
+    /**
+     * 签名token快过期时续签的新token 由RenewedTokenAdvice写入 客户端收到后替换本地保存的token
+     */
+    private String token;
 
     public static Result ok(){
-        return new Result(true, null, null, null);
+        return new Result(true, null, null, null, null);
     }
     public static Result ok(Object data){
-        return new Result(true, null, data, null);
+        return new Result(true, null, data, null, null);
     }
     public static Result ok(List<?> data, Long total){
-        return new Result(true, null, data, total);
+        return new Result(true, null, data, total, null);
     }
     public static Result fail(String errorMsg){
-        return new Result(false, errorMsg, null, null);
+        return new Result(false, errorMsg, null, null, null);
     }
 }
@@ -6,5 +6,11 @@ public interface RedisConstant {
     long CACHE_SHOP_TTL = 30L;
     long LOCK_SHOP_TTL = 10L;
     String SHOP_LOCK = "lock:shop::";
+    String CACHE_INVALIDATE_TOPIC = "cache:invalidate";
+    String BLOG_CACHE = "cache:blog::";
+    long CACHE_BLOG_TTL = 30L;
+    String USER_CACHE = "cache:user::";
+    String USER_INFO_CACHE = "cache:user-info::";
+    long CACHE_USER_TTL = 30L;
 
 }
@@ -1,22 +1,23 @@
 package com.hmdp.interceptor;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
-import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.LoginSessions;
 import com.hmdp.utils.UserHolder;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
 
 public class RefreshTokenInterceptor implements HandlerInterceptor {
-    private final RedisTemplate<String, Object> redisTemplate;
+    /**
+     * 续签的新token保存在请求属性中 由RenewedTokenAdvice写入响应体
+     */
+    public static final String RENEWED_TOKEN_ATTRIBUTE = "hmdp.renewedToken";
+    private final LoginSessions loginSessions;
 
     //构造器注入
-    public RefreshTokenInterceptor(RedisTemplate<String, Object> redisTemplate) {
-        this.redisTemplate = redisTemplate;
+    public RefreshTokenInterceptor(LoginSessions loginSessions) {
+        this.loginSessions = loginSessions;
     }
 
     /**
@@ -29,16 +30,20 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         if (StrUtil.isBlank(token)) {
             return true;
         }
-        //从redis中获取用户信息
-        Map<Object, Object> userMap  = redisTemplate.opsForHash().entries("login:token:" + token);
-        if (userMap.isEmpty()) {
+        //先查本地缓存 再从redis中获取用户信息 过期时间由后台批量刷新
+        LoginSessions.Session session = loginSessions.get(token);
+        if (session == null) {
             return true;
         }
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
         //将用户信息存入ThreadLocal
-        UserHolder.saveUser(userDTO);
-        //将redis重新设置过期时间
-        redisTemplate.expire("login:token:" + token, 30, java.util.concurrent.TimeUnit.MINUTES);
+        UserHolder.saveUser(session.getUser());
+        //签名token快过期时在响应体的token字段和响应头中返回续签的token 响应头需要暴露给跨域请求的脚本
+        String renewed = session.getRenewedToken();
+        if (renewed != null) {
+            request.setAttribute(RENEWED_TOKEN_ATTRIBUTE, renewed);
+            response.setHeader("authorization", renewed);
+            response.setHeader("Access-Control-Expose-Headers", "authorization");
+        }
         return true;
     }
 
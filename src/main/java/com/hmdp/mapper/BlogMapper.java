@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -12,5 +15,8 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  * @since 2021-12-22
  */
 public interface BlogMapper extends BaseMapper<Blog> {
-
+    /**
+     * 批量累加点赞数 blogId -> 增量
+     */
+    int incrLikedBatch(@Param("deltas") Map<Long, Long> deltas);
 }
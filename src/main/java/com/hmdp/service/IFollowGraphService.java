@@ -0,0 +1,23 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+/**
+ * <p>
+ *  关注关系 粉丝列表、关注列表和关注数/粉丝数
+ * </p>
+ */
+public interface IFollowGraphService {
+
+    void onFollow(Long userId, Long followUserId);
+
+    void onUnfollow(Long userId, Long followUserId);
+
+    long followerCount(Long userId);
+
+    Result queryCounts(Long userId);
+
+    Result queryFollowers(Long userId, Long max, Integer offset);
+
+    Result queryFollowing(Long userId, Long lastId);
+}
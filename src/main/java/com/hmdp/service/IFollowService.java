@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Follow;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -18,5 +21,7 @@ public interface IFollowService extends IService<Follow> {
 
     Result isFollow(Long id);
 
-    Result commonFollow(Long id);
+    Map<Long, Boolean> areFollowing(List<Long> ids);
+
+    Result commonFollow(Long id, Integer current);
 }
@@ -20,5 +20,7 @@ public interface IShopService extends IService<Shop> {
 
     Result update(Shop shop);
 
-    Result queryByType(Integer typeId, Integer current, Double x, Double y);
+    Result queryByName(String name, Integer current);
+
+    Result queryByType(Integer typeId, Integer current, Double x, Double y, Double lastDistance, Long lastId);
 }
@@ -0,0 +1,25 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.UserInfo;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>
+ *  用户资料缓存
+ * </p>
+ */
+public interface IUserCacheService {
+    UserDTO get(Long id);
+
+    /**
+     * 批量查询 不存在的用户不在结果中
+     */
+    Map<Long, UserDTO> getAll(Collection<Long> ids);
+
+    UserInfo getInfo(Long userId);
+
+    Map<Long, UserInfo> getInfoAll(Collection<Long> userIds);
+}
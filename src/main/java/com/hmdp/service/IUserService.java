@@ -22,6 +22,8 @@ public interface IUserService extends IService<User> {
 
     Result login(LoginFormDTO loginForm, HttpSession session);
 
+    Result logout(String token);
+
     User createUserByPhone(String phone);
 
     Result signCount();
@@ -1,26 +1,54 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.StrUtil;
+import cn.hutool.core.thread.ThreadUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
+import com.hmdp.entity.RedisConstant;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IBlogService;
+import com.hmdp.service.IFollowGraphService;
+import com.hmdp.service.IUserCacheService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -31,6 +59,7 @@ import java.util.stream.Collectors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
     @Resource
@@ -39,13 +68,526 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private FollowServiceImpl followerService;
+    @Resource
+    private IdBloomFilters idBloomFilters;
+    @Resource
+    private RedissonClient redissonClient;
+    @Value("${hmdp.blog.like.flush-interval-millis:3000}")
+    private long likeFlushIntervalMillis;
+    @Value("${hmdp.blog.like.flush-batch-size:500}")
+    private int likeFlushBatchSize;
+    /**
+     * 每次写回最多处理的批数 剩下的留到下一次
+     */
+    private static final int LIKE_FLUSH_MAX_BATCHES = 10;
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    private static final DefaultRedisScript<List> LIKE_FLUSH_SCRIPT;
+    private static final DefaultRedisScript<Long> HOT_REBUILD_SCRIPT;
+    private static final DefaultRedisScript<Long> HOT_SWAP_SCRIPT;
+    private static final DefaultRedisScript<Long> FEED_DEMOTE_SCRIPT;
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setResultType(Long.class);
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_FLUSH_SCRIPT = new DefaultRedisScript<>();
+        LIKE_FLUSH_SCRIPT.setResultType(List.class);
+        LIKE_FLUSH_SCRIPT.setLocation(new ClassPathResource("like_flush.lua"));
+        HOT_REBUILD_SCRIPT = new DefaultRedisScript<>();
+        HOT_REBUILD_SCRIPT.setResultType(Long.class);
+        HOT_REBUILD_SCRIPT.setLocation(new ClassPathResource("blog_hot_rebuild.lua"));
+        HOT_SWAP_SCRIPT = new DefaultRedisScript<>();
+        HOT_SWAP_SCRIPT.setResultType(Long.class);
+        HOT_SWAP_SCRIPT.setLocation(new ClassPathResource("blog_hot_swap.lua"));
+        FEED_DEMOTE_SCRIPT = new DefaultRedisScript<>();
+        FEED_DEMOTE_SCRIPT.setResultType(Long.class);
+        FEED_DEMOTE_SCRIPT.setLocation(new ClassPathResource("feed_demote.lua"));
+    }
+    private ScheduledExecutorService likeFlushExecutor;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private IUserCacheService userCacheService;
+    @Resource
+    private IFollowGraphService followGraphService;
+    /**
+     * 热门排行榜的时间衰减半衰期 0表示不衰减 按点赞数排序
+     */
+    @Value("${hmdp.blog.hot.decay-half-life-hours:0}")
+    private double hotDecayHalfLifeHours;
+    @Value("${hmdp.blog.hot.rebuild-interval-hours:24}")
+    private long hotRebuildIntervalHours;
+    /**
+     * 权重指数的上限 2^512远小于double的最大值 多次累加也不会溢出
+     */
+    private static final int HOT_MAX_EXPONENT = 512;
+    /**
+     * 开启衰减时至少每隔这么多个半衰期重建一次 把衰减起点移到当前时间 新点赞的权重不超过2^64
+     */
+    private static final int HOT_REBASE_HALF_LIVES = 64;
+    private static final int HOT_REBUILD_CHUNK_SIZE = 1000;
+    /**
+     * 每次脚本调用计算的博文数 脚本要遍历点赞记录 不宜太多
+     */
+    private static final int HOT_REBUILD_SCRIPT_BATCH = 100;
+    private ScheduledExecutorService hotRebuildExecutor;
+    @Value("${hmdp.feed.fanout.threads:4}")
+    private int fanoutThreads;
+    @Value("${hmdp.feed.fanout.chunk-size:1000}")
+    private int fanoutChunkSize;
+    @Value("${hmdp.feed.fanout.recover-interval-millis:30000}")
+    private long fanoutRecoverIntervalMillis;
+    @Value("${hmdp.feed.fanout.stale-millis:60000}")
+    private long fanoutStaleMillis;
+    @Value("${hmdp.feed.fanout.max-attempts:5}")
+    private int fanoutMaxAttempts;
+    /**
+     * 粉丝数达到该值的作者只写自己的发件箱 由粉丝读取时拉取 0表示全部推送
+     */
+    @Value("${hmdp.feed.big-author-followers:10000}")
+    private long bigAuthorFollowers;
+    @Value("${hmdp.feed.inbox-max-size:1000}")
+    private long inboxMaxSize;
+    @Value("${hmdp.feed.outbox-max-size:1000}")
+    private long outboxMaxSize;
+    @Value("${hmdp.feed.big-author-check-minutes:60}")
+    private long bigAuthorCheckMinutes;
+    /**
+     * 同一分数按博文id倒序 与单个zset的ZREVRANGE顺序一致
+     */
+    private static final Comparator<ZSetOperations.TypedTuple<String>> FEED_ORDER =
+            Comparator.<ZSetOperations.TypedTuple<String>>comparingDouble(t -> Objects.requireNonNull(t.getScore())).reversed()
+                    .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+    private ExecutorService fanoutExecutor;
+    private ScheduledExecutorService fanoutRecoveryExecutor;
+
+    /**
+     * 点赞数异步写回数据库
+     * 点赞时只在redis中记录增量 后台定时把各博文的增量合并后批量写回tb_blog.liked
+     * 增量保存在redis中 重启后继续写回
+     */
+    @PostConstruct
+    private void startLikeFlusher() {
+        likeFlushExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("blog-like-flush-", true));
+        likeFlushExecutor.scheduleWithFixedDelay(this::flushLikes, likeFlushIntervalMillis, likeFlushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void stopLikeFlusher() {
+        likeFlushExecutor.shutdown();
+        flushLikes();
+    }
+
+    /**
+     * 热门排行榜 blog:hot 博文id -> 热度
+     * 启动时排行榜不存在则立即重建 之后定时重建 平时由点赞事件增量更新
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startHotRebuild() {
+        hotRebuildExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("blog-hot-rebuild-", true));
+        long interval = hotRebuildIntervalMinutes();
+        //排行榜不存在 或者开启衰减后还没有衰减起点时立即重建
+        boolean ready = Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.BLOG_HOT_KEY))
+                && (hotDecayHalfLifeHours <= 0 || Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.BLOG_HOT_EPOCH_KEY)));
+        hotRebuildExecutor.scheduleWithFixedDelay(this::rebuildHotBlogs, ready ? interval : 0, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 重建间隔 开启衰减时不超过HOT_REBASE_HALF_LIVES个半衰期
+     */
+    private long hotRebuildIntervalMinutes() {
+        long interval = TimeUnit.HOURS.toMinutes(hotRebuildIntervalHours);
+        if (hotDecayHalfLifeHours > 0) {
+            interval = Math.min(interval, (long) (hotDecayHalfLifeHours * 60 * HOT_REBASE_HALF_LIVES));
+        }
+        return Math.max(interval, 1);
+    }
+
+    @PreDestroy
+    private void stopHotRebuild() {
+        if (hotRebuildExecutor != null) {
+            hotRebuildExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 按id顺序分批读取tb_blog 以当前时间为衰减起点 按点赞记录计算热度 写入临时key后RENAME替换排行榜
+     * 重建期间点赞同时写入临时key 替换时不会丢失
+     */
+    private void rebuildHotBlogs() {
+        RLock lock = redissonClient.getLock(RedisConstants.BLOG_HOT_REBUILD_LOCK);
+        try {
+            if (!lock.tryLock()) {
+                return;
+            }
+        } catch (Exception e) {
+            log.warn("获取热门排行榜重建锁失败", e);
+            return;
+        }
+        try {
+            stringRedisTemplate.delete(RedisConstants.BLOG_HOT_TMP_KEY);
+            long epoch = System.currentTimeMillis() / 1000;
+            //开始双写 之后才读取点赞记录
+            stringRedisTemplate.opsForValue().set(RedisConstants.BLOG_HOT_TMP_EPOCH_KEY, String.valueOf(epoch));
+            long lastId = 0;
+            int total = 0;
+            while (true) {
+                List<Blog> blogs = query().select("id", "liked", "create_time")
+                        .gt("id", lastId).orderByAsc("id").last("limit " + HOT_REBUILD_CHUNK_SIZE).list();
+                if (blogs.isEmpty()) {
+                    break;
+                }
+                for (int from = 0; from < blogs.size(); from += HOT_REBUILD_SCRIPT_BATCH) {
+                    List<Blog> batch = blogs.subList(from, Math.min(from + HOT_REBUILD_SCRIPT_BATCH, blogs.size()));
+                    List<String> keys = new ArrayList<>(batch.size() + 1);
+                    List<String> args = new ArrayList<>(batch.size() * 2 + 3);
+                    keys.add(RedisConstants.BLOG_HOT_TMP_KEY);
+                    args.add(String.valueOf(epoch));
+                    args.add(String.valueOf(hotDecayHalfLifeHours * 3600));
+                    args.add(String.valueOf(HOT_MAX_EXPONENT));
+                    for (Blog blog : batch) {
+                        keys.add(RedisConstants.BLOG_LIKE_KEY + blog.getId());
+                        args.add(blog.getId().toString());
+                        args.add(String.valueOf(hotScore(blog, epoch)));
+                    }
+                    stringRedisTemplate.execute(HOT_REBUILD_SCRIPT, keys, args.toArray());
+                }
+                lastId = blogs.get(blogs.size() - 1).getId();
+                total += blogs.size();
+                if (blogs.size() < HOT_REBUILD_CHUNK_SIZE) {
+                    break;
+                }
+            }
+            //替换的同时停止双写 没有博文时只停止双写
+            stringRedisTemplate.execute(HOT_SWAP_SCRIPT,
+                    Arrays.asList(RedisConstants.BLOG_HOT_TMP_KEY, RedisConstants.BLOG_HOT_KEY,
+                            RedisConstants.BLOG_HOT_EPOCH_KEY, RedisConstants.BLOG_HOT_TMP_EPOCH_KEY));
+            log.info("热门排行榜重建完成 {} 篇博文", total);
+        } catch (Exception e) {
+            log.error("热门排行榜重建失败", e);
+            stringRedisTemplate.delete(Arrays.asList(RedisConstants.BLOG_HOT_TMP_EPOCH_KEY, RedisConstants.BLOG_HOT_TMP_KEY));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 没有点赞记录的博文的热度 点赞时间未知 按点赞数乘以发布时间的权重估算
+     */
+    private double hotScore(Blog blog, long epoch) {
+        int liked = blog.getLiked() == null ? 0 : blog.getLiked();
+        LocalDateTime time = blog.getCreateTime() == null ? LocalDateTime.now() : blog.getCreateTime();
+        return liked * hotWeight(time.atZone(ZoneId.systemDefault()).toEpochSecond(), epoch);
+    }
+
+    /**
+     * 一次点赞的权重 开启衰减时每过一个半衰期新的点赞权重翻倍 相当于旧的热度减半
+     * 指数相对于排行榜的衰减起点计算 并且不超过HOT_MAX_EXPONENT 与like.lua相同
+     */
+    private double hotWeight(long epochSecond, long epoch) {
+        if (hotDecayHalfLifeHours <= 0) {
+            return 1;
+        }
+        return Math.pow(2, Math.min((epochSecond - epoch) / (hotDecayHalfLifeHours * 3600), HOT_MAX_EXPONENT));
+    }
+
+    /**
+     * 博文推送到粉丝收件箱 异步执行
+     * 推送任务保存在redis中 feed:fanout:{blogId} 记录作者、发布时间和已推送到的tb_follow游标
+     * 任务在一段时间内没有进展时由巡检线程从游标处重新执行 ZADD使用发布时间作为分数 重复推送是幂等的
+     */
+    @PostConstruct
+    private void startFanout() {
+        fanoutExecutor = new ThreadPoolExecutor(fanoutThreads, fanoutThreads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1000), ThreadUtil.newNamedThreadFactory("feed-fanout-", true),
+                new ThreadPoolExecutor.AbortPolicy());
+        fanoutRecoveryExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("feed-fanout-recovery-", true));
+        fanoutRecoveryExecutor.scheduleWithFixedDelay(this::recoverFanout, fanoutRecoverIntervalMillis,
+                fanoutRecoverIntervalMillis, TimeUnit.MILLISECONDS);
+        fanoutRecoveryExecutor.scheduleWithFixedDelay(this::demoteBigAuthors, bigAuthorCheckMinutes,
+                bigAuthorCheckMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void stopFanout() {
+        fanoutRecoveryExecutor.shutdown();
+        fanoutExecutor.shutdown();
+    }
+
+    /**
+     * 发布博文 大V登记为大V并写入自己的发件箱 其他作者登记推送任务并提交执行 线程池已满时由巡检线程稍后执行
+     */
+    private void submitFanout(Long blogId, Long authorId, long time) {
+        if (isBigAuthor(authorId)) {
+            //先登记再写发件箱 取消登记时据此判断能否删除发件箱
+            stringRedisTemplate.opsForSet().add(RedisConstants.FEED_BIG_AUTHORS_KEY, authorId.toString());
+            String outbox = RedisConstants.FEED_OUTBOX_KEY + authorId;
+            stringRedisTemplate.opsForZSet().add(outbox, blogId.toString(), time);
+            stringRedisTemplate.opsForZSet().removeRange(outbox, 0, -outboxMaxSize - 1);
+            return;
+        }
+        createFanoutTask(blogId, authorId, time);
+        executeFanout(blogId);
+    }
+
+    private boolean isBigAuthor(Long authorId) {
+        return bigAuthorFollowers > 0 && followGraphService.followerCount(authorId) >= bigAuthorFollowers;
+    }
+
+    private void createFanoutTask(Long blogId, Long authorId, long time) {
+        Map<String, String> task = new HashMap<>();
+        task.put("authorId", authorId.toString());
+        task.put("time", String.valueOf(time));
+        task.put("cursor", "0");
+        task.put("attempts", "0");
+        task.put("updatedAt", String.valueOf(System.currentTimeMillis()));
+        stringRedisTemplate.opsForHash().putAll(RedisConstants.FEED_FANOUT_TASK_KEY + blogId, task);
+        stringRedisTemplate.opsForSet().add(RedisConstants.FEED_FANOUT_PENDING_KEY, blogId.toString());
+    }
+
+    /**
+     * 粉丝数降到阈值以下的大V 把发件箱中的博文提交到推送线程池 推送到粉丝的收件箱
+     * 下一次检查时确认都已推送完成 再取消登记并删除发件箱
+     * 推送完成之前仍然登记为大V 读取时同时拉取发件箱 重复的博文在mergeFeeds中去掉
+     */
+    private void demoteBigAuthors() {
+        RLock lock = redissonClient.getLock(RedisConstants.FEED_BIG_AUTHORS_LOCK);
+        try {
+            if (!lock.tryLock()) {
+                return;
+            }
+        } catch (Exception e) {
+            log.warn("获取大V检查锁失败", e);
+            return;
+        }
+        try {
+            Set<String> authors = stringRedisTemplate.opsForSet().members(RedisConstants.FEED_BIG_AUTHORS_KEY);
+            if (authors == null) {
+                return;
+            }
+            for (String author : authors) {
+                Long authorId = Long.valueOf(author);
+                String pushedKey = RedisConstants.FEED_DEMOTE_PUSHED_KEY + authorId;
+                if (isBigAuthor(authorId)) {
+                    //粉丝数又回到阈值以上 放弃上一次没有完成的取消登记
+                    stringRedisTemplate.delete(pushedKey);
+                    continue;
+                }
+                if (!pushOutbox(authorId)) {
+                    continue;
+                }
+                stringRedisTemplate.opsForSet().remove(RedisConstants.FEED_BIG_AUTHORS_KEY, author);
+                //取消登记之前刚写入发件箱的博文 失败时由推送任务巡检重试
+                pushOutbox(authorId);
+                stringRedisTemplate.execute(FEED_DEMOTE_SCRIPT,
+                        Arrays.asList(RedisConstants.FEED_BIG_AUTHORS_KEY, RedisConstants.FEED_OUTBOX_KEY + authorId, pushedKey),
+                        author);
+                log.info("作者粉丝数降到阈值以下 取消大V登记 {}", authorId);
+            }
+        } catch (Exception e) {
+            log.error("检查大V失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把发件箱中还没有提交过的博文提交到推送线程池 线程池已满时由推送任务巡检执行
+     * @return 发件箱中的博文都已经提交过并且推送完成时返回true
+     */
+    private boolean pushOutbox(Long authorId) {
+        Set<ZSetOperations.TypedTuple<String>> blogs = stringRedisTemplate.opsForZSet()
+                .rangeWithScores(RedisConstants.FEED_OUTBOX_KEY + authorId, 0, -1);
+        if (blogs == null || blogs.isEmpty()) {
+            return true;
+        }
+        String pushedKey = RedisConstants.FEED_DEMOTE_PUSHED_KEY + authorId;
+        Set<String> pushed = stringRedisTemplate.opsForSet().members(pushedKey);
+        boolean done = true;
+        for (ZSetOperations.TypedTuple<String> tuple : blogs) {
+            String blogId = Objects.requireNonNull(tuple.getValue());
+            if (pushed != null && pushed.contains(blogId)) {
+                //推送完成后任务会被删除
+                if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.FEED_FANOUT_TASK_KEY + blogId))) {
+                    done = false;
+                }
+                continue;
+            }
+            createFanoutTask(Long.valueOf(blogId), authorId, Objects.requireNonNull(tuple.getScore()).longValue());
+            stringRedisTemplate.opsForSet().add(pushedKey, blogId);
+            executeFanout(Long.valueOf(blogId));
+            done = false;
+        }
+        return done;
+    }
+
+    private void executeFanout(Long blogId) {
+        try {
+            fanoutExecutor.execute(() -> runFanout(blogId));
+        } catch (RejectedExecutionException e) {
+            log.warn("推送线程池已满 等待巡检重试 {}", blogId);
+        }
+    }
+
+    /**
+     * 从游标处按tb_follow的id分批读取粉丝 每批用一次pipeline写入粉丝的收件箱 每批完成后记录游标
+     */
+    private void runFanout(Long blogId) {
+        RLock lock = redissonClient.getLock(RedisConstants.FEED_FANOUT_LOCK + blogId);
+        if (!lock.tryLock()) {
+            return;
+        }
+        String key = RedisConstants.FEED_FANOUT_TASK_KEY + blogId;
+        try {
+            Map<Object, Object> task = stringRedisTemplate.opsForHash().entries(key);
+            if (task.isEmpty()) {
+                stringRedisTemplate.opsForSet().remove(RedisConstants.FEED_FANOUT_PENDING_KEY, blogId.toString());
+                return;
+            }
+            Long authorId = Long.valueOf(task.get("authorId").toString());
+            long time = Long.parseLong(task.get("time").toString());
+            long cursor = Long.parseLong(task.get("cursor").toString());
+            stringRedisTemplate.opsForHash().increment(key, "attempts", 1);
+            while (true) {
+                List<Follow> follows = followerService.query().select("id", "user_id")
+                        .eq("follow_user_id", authorId).gt("id", cursor)
+                        .orderByAsc("id").last("limit " + fanoutChunkSize).list();
+                if (follows.isEmpty()) {
+                    break;
+                }
+                pushToFeeds(blogId, time, follows.stream().map(Follow::getUserId).collect(Collectors.toList()));
+                cursor = follows.get(follows.size() - 1).getId();
+                Map<String, String> progress = new HashMap<>();
+                progress.put("cursor", String.valueOf(cursor));
+                progress.put("updatedAt", String.valueOf(System.currentTimeMillis()));
+                stringRedisTemplate.opsForHash().putAll(key, progress);
+                if (follows.size() < fanoutChunkSize) {
+                    break;
+                }
+            }
+            stringRedisTemplate.delete(key);
+            stringRedisTemplate.opsForSet().remove(RedisConstants.FEED_FANOUT_PENDING_KEY, blogId.toString());
+        } catch (Exception e) {
+            log.error("推送博文到粉丝收件箱失败 等待重试 {}", blogId, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 写入粉丝的收件箱 并截断到inboxMaxSize条
+     */
+    private void pushToFeeds(Long blogId, long time, List<Long> userIds) {
+        byte[] member = blogId.toString().getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long userId : userIds) {
+                byte[] key = (RedisConstants.FEED_KEY + userId).getBytes(StandardCharsets.UTF_8);
+                connection.zSetCommands().zAdd(key, time, member);
+                connection.zSetCommands().zRemRange(key, 0, -inboxMaxSize - 1);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 巡检长时间没有进展的推送任务 超过最大重试次数的任务放弃
+     */
+    private void recoverFanout() {
+        try {
+            Set<String> blogIds = stringRedisTemplate.opsForSet().members(RedisConstants.FEED_FANOUT_PENDING_KEY);
+            if (blogIds == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (String blogId : blogIds) {
+                String key = RedisConstants.FEED_FANOUT_TASK_KEY + blogId;
+                List<Object> values = stringRedisTemplate.opsForHash().multiGet(key, Arrays.asList("updatedAt", "attempts"));
+                if (values.get(0) == null) {
+                    stringRedisTemplate.opsForSet().remove(RedisConstants.FEED_FANOUT_PENDING_KEY, blogId);
+                    continue;
+                }
+                if (now - Long.parseLong(values.get(0).toString()) < fanoutStaleMillis) {
+                    continue;
+                }
+                if (values.get(1) != null && Integer.parseInt(values.get(1).toString()) >= fanoutMaxAttempts) {
+                    log.error("推送博文到粉丝收件箱多次失败 放弃 {}", blogId);
+                    stringRedisTemplate.delete(key);
+                    stringRedisTemplate.opsForSet().remove(RedisConstants.FEED_FANOUT_PENDING_KEY, blogId);
+                    continue;
+                }
+                //先更新时间 避免下一次巡检时任务还在队列中又被提交
+                stringRedisTemplate.opsForHash().put(key, "updatedAt", String.valueOf(now));
+                executeFanout(Long.valueOf(blogId));
+            }
+        } catch (Exception e) {
+            log.error("巡检推送任务失败", e);
+        }
+    }
+
+    /**
+     * 注册博文id布隆过滤器 按id顺序分批加载
+     */
+    @PostConstruct
+    private void registerBloomFilter() {
+        idBloomFilters.register(IdBloomFilters.BLOG, (afterId, limit) -> query().select("id")
+                .gt("id", afterId).orderByAsc("id").last("limit " + limit)
+                .list().stream().map(Blog::getId).collect(Collectors.toList()));
+    }
+
+    /**
+     * 修改博文 先更新数据库 再删除缓存
+     */
+    @Override
+    public boolean updateById(Blog blog) {
+        boolean success = super.updateById(blog);
+        cacheClient.delete(RedisConstant.BLOG_CACHE + blog.getId());
+        return success;
+    }
+
+    /**
+     * 删除博文 同时删除缓存
+     */
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean success = super.removeById(id);
+        cacheClient.delete(RedisConstant.BLOG_CACHE + id);
+        return success;
+    }
+
+    /**
+     * 批量查询博文 走缓存 按ids的顺序返回副本 调用方可以设置作者和点赞状态
+     */
+    private List<Blog> queryBlogsByIds(List<Long> ids) {
+        Map<Long, Blog> blogMap = cacheClient.queryAllWithThrough(RedisConstant.BLOG_CACHE, ids, Blog.class,
+                Blog::getId, this::listByIds, RedisConstant.CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        return ids.stream().map(blogMap::get).filter(Objects::nonNull)
+                .map(blog -> BeanUtil.copyProperties(blog, Blog.class))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 新增博文 同时加入布隆过滤器
+     */
+    @Override
+    public boolean save(Blog blog) {
+        boolean success = super.save(blog);
+        if (success) {
+            idBloomFilters.add(IdBloomFilters.BLOG, blog.getId());
+        }
+        return success;
+    }
+
     @Override
     public Result queryBlogById(long id) {
-        // 查询博文
-        Blog blog = getById(id);
-        if (blog == null) {
+        //布隆过滤器判断不存在的id 直接返回
+        if (!idBloomFilters.mightContain(IdBloomFilters.BLOG, id)) {
+            return Result.fail("博文不存在");
+        }
+        // 查询博文 走缓存
+        List<Blog> blogs = queryBlogsByIds(Collections.singletonList(id));
+        if (blogs.isEmpty()) {
             return Result.fail("博文不存在");
         }
+        Blog blog = blogs.get(0);
         // 查询用户
         queryBlogUser(blog);
         isLiked(blog);
@@ -53,24 +595,59 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     private void queryBlogUser(Blog blog) {
-        User user = userService.getById(blog.getUserId());
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+        UserDTO user = userCacheService.get(blog.getUserId());
+        if (user != null) {
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
+    }
+
+    /**
+     * 批量查询博文作者 走用户缓存
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = userCacheService.getAll(userIds);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
+        if (current == null || current < 1 || current > SystemConstants.MAX_PAGE_NUM) {
+            return Result.ok(Collections.emptyList());
+        }
+        //从排行榜中取出当前页的博文id
+        int start = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<String> idSet = stringRedisTemplate.opsForZSet().reverseRange(RedisConstants.BLOG_HOT_KEY,
+                start, start + SystemConstants.MAX_PAGE_SIZE - 1);
+        if (idSet != null && !idSet.isEmpty()) {
+            List<Long> ids = idSet.stream().map(Long::valueOf).collect(Collectors.toList());
+            List<Blog> records = queryBlogsByIds(ids);
+            queryBlogUsers(records);
+            isLiked(records);
+            return Result.ok(records);
+        }
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.BLOG_HOT_KEY))) {
+            return Result.ok(Collections.emptyList());
+        }
+        //排行榜还没有建立 回退到数据库分页
         Page<Blog> page = query()
                 .orderByDesc("liked")
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            queryBlogUser(blog);
-            isLiked(blog);
-        });
+        // 批量查询用户和点赞状态
+        queryBlogUsers(records);
+        isLiked(records);
         return Result.ok(records);
     }
 
@@ -80,48 +657,84 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (id<=0){
             return Result.fail("非法参数");
         }
-        Blog blog = getById(id);
-        if (blog == null) {
+        if (!idBloomFilters.mightContain(IdBloomFilters.BLOG, id)) {
             return Result.fail("博文不存在");
         }
-        String key = "blog:like:" + id;
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        //如果没有点赞过
-        if (score == null) {
-            boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            if (isSuccess) {
-                //将用户id加入到集合中 传入当前时间戳判断点赞顺序
-                stringRedisTemplate.opsForZSet().add(key, userId.toString(),System.currentTimeMillis());
+        //布隆过滤器可能关闭或误判 再走博文缓存确认 不存在的id也会缓存空值
+        if (queryBlogsByIds(Collections.singletonList(id)).isEmpty()) {
+            return Result.fail("博文不存在");
+        }
+        //判断是否点赞过并切换 传入当前时间戳判断点赞顺序 点赞数的增量由后台写回数据库
+        stringRedisTemplate.execute(LIKE_SCRIPT,
+                Arrays.asList(RedisConstants.BLOG_LIKE_KEY + id, RedisConstants.BLOG_LIKE_DELTA_KEY,
+                        RedisConstants.BLOG_LIKE_DIRTY_KEY, RedisConstants.BLOG_HOT_KEY, RedisConstants.BLOG_HOT_EPOCH_KEY,
+                        RedisConstants.BLOG_HOT_TMP_KEY, RedisConstants.BLOG_HOT_TMP_EPOCH_KEY),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), id.toString(),
+                String.valueOf(hotDecayHalfLifeHours * 3600), String.valueOf(HOT_MAX_EXPONENT));
+        return Result.ok();
+    }
+
+    /**
+     * 把redis中的点赞增量批量写回数据库
+     * 多个节点之间用分布式锁保证同一时间只有一个节点在写回
+     */
+    private void flushLikes() {
+        RLock lock = redissonClient.getLock(RedisConstants.BLOG_LIKE_FLUSH_LOCK);
+        try {
+            if (!lock.tryLock()) {
+                return;
             }
+        } catch (Exception e) {
+            log.warn("获取点赞写回锁失败", e);
+            return;
         }
-        else{
-            boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
-            if (isSuccess) {
-                stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+        try {
+            for (int i = 0; i < LIKE_FLUSH_MAX_BATCHES; i++) {
+                //取出一批脏博文的增量 连同上一次没有写回成功的增量
+                List<?> result = stringRedisTemplate.execute(LIKE_FLUSH_SCRIPT,
+                        Arrays.asList(RedisConstants.BLOG_LIKE_DIRTY_KEY, RedisConstants.BLOG_LIKE_DELTA_KEY,
+                                RedisConstants.BLOG_LIKE_FLUSHING_KEY),
+                        String.valueOf(likeFlushBatchSize));
+                if (result == null || result.isEmpty()) {
+                    return;
+                }
+                Map<Long, Long> deltas = new HashMap<>(result.size());
+                for (int j = 0; j + 1 < result.size(); j += 2) {
+                    deltas.put(Long.valueOf(result.get(j).toString()), Long.valueOf(result.get(j + 1).toString()));
+                }
+                getBaseMapper().incrLikedBatch(deltas);
+                //点赞数变了 删除博文缓存
+                cacheClient.deleteAll(deltas.keySet().stream()
+                        .map(blogId -> RedisConstant.BLOG_CACHE + blogId).collect(Collectors.toList()));
+                //写回成功后才删除 失败时下一次重试
+                stringRedisTemplate.opsForHash().delete(RedisConstants.BLOG_LIKE_FLUSHING_KEY,
+                        deltas.keySet().stream().map(String::valueOf).toArray());
+                if (deltas.size() < likeFlushBatchSize) {
+                    return;
+                }
             }
+        } catch (Exception e) {
+            log.error("点赞数写回数据库失败", e);
+        } finally {
+            lock.unlock();
         }
-        return Result.ok();
     }
 
     @Override
     public Result queryBlogLikes(Long id) {
         //查询top5的点赞用户 zrange key start stop
-        String key = "blog:like:" + id;
+        String key = RedisConstants.BLOG_LIKE_KEY + id;
         Set<String> userIds = stringRedisTemplate.opsForZSet().reverseRange(key, 0, 4);
         if (userIds != null && userIds.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
-        List<Long> ids = null;
-        if (userIds != null) {
-            ids = userIds.stream().map(Long::valueOf).collect(Collectors.toList());
-        }
-        String join = StrUtil.join(",", ids);
-        //这里必须要指定排序 否则会导致数据顺序错乱
-        List<UserDTO> users = userService.query().in("id", ids)
-                .last("Order by field(id," + join + ")")
-                .list()
-                .stream()
-                .map(user -> BeanUtil.toBean(user, UserDTO.class)).collect(Collectors.toList());
+        if (userIds == null) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = userIds.stream().map(Long::valueOf).collect(Collectors.toList());
+        //走用户缓存 按点赞顺序排列
+        Map<Long, UserDTO> userMap = userCacheService.getAll(ids);
+        List<UserDTO> users = ids.stream().map(userMap::get).filter(Objects::nonNull).collect(Collectors.toList());
         return Result.ok(users);
     }
 
@@ -135,15 +748,13 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!save) {
             return Result.fail("新增笔记失败");
         }
-        //查询当前用户的粉丝
-        List<Follow> follows = followerService.query().eq("follow_user_id", user.getId()).list();
-        for (Follow follow : follows) {
-            //将博文id加入到粉丝的收件箱中 Zset存储
-            Long userId = follow.getUserId();
-            //推送到粉丝的feed中
-            String key = "feed:" + userId;
-            stringRedisTemplate.opsForZSet().add(key, blog.getId().toString(), System.currentTimeMillis());
+        //加入热门排行榜
+        stringRedisTemplate.opsForZSet().addIfAbsent(RedisConstants.BLOG_HOT_KEY, blog.getId().toString(), 0);
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.BLOG_HOT_TMP_EPOCH_KEY))) {
+            stringRedisTemplate.opsForZSet().addIfAbsent(RedisConstants.BLOG_HOT_TMP_KEY, blog.getId().toString(), 0);
         }
+        //异步将博文id推送到粉丝的收件箱中 Zset存储
+        submitFanout(blog.getId(), user.getId(), System.currentTimeMillis());
         // 返回id
         return Result.ok(blog.getId());
     }
@@ -155,12 +766,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogOfFollow(Long max, Integer offset) {
         // 获取登录用户
         UserDTO user = UserHolder.getUser();
-        // 查询收件箱 ZREVANGE key MAX MIN LIMIT offset count
-        String key = "feed:" + user.getId();
-        //解析数据
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(key, 0, max, offset, SystemConstants.MAX_PAGE_SIZE);
-        if (typedTuples == null || typedTuples.isEmpty()) {
+        // 收件箱 加上关注的大V的发件箱
+        List<String> keys = new ArrayList<>();
+        keys.add(RedisConstants.FEED_KEY + user.getId());
+        followerService.loadFollowsIfAbsent(user.getId());
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet()
+                .intersect(RedisConstants.FOLLOWS_KEY + user.getId(), RedisConstants.FEED_BIG_AUTHORS_KEY);
+        if (bigAuthors != null) {
+            bigAuthors.forEach(authorId -> keys.add(RedisConstants.FEED_OUTBOX_KEY + authorId));
+        }
+        // 多路归并 跳过分数等于max的前offset条
+        List<ZSetOperations.TypedTuple<String>> typedTuples = mergeFeeds(keys, max, offset, SystemConstants.MAX_PAGE_SIZE);
+        if (typedTuples.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
         //解析数据
@@ -180,15 +797,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 i = 1;
             }
         }
-        String join = StrUtil.join(",", ids);
-        //根据id查询博文
-        List<Blog> blogList = query().in("id", ids)
-                .last("Order by field(id," + join + ")")
-                .list();
-        blogList.forEach(blog -> {
-            queryBlogUser(blog);
-            isLiked(blog);
-        });
+        //整页的分数都等于max时 下一页还要跳过这一页之前已经跳过的
+        if (minTime == max) {
+            i += offset;
+        }
+        //根据id查询博文 走缓存 按收件箱的顺序返回
+        List<Blog> blogList = queryBlogsByIds(ids);
+        queryBlogUsers(blogList);
+        isLiked(blogList);
         ScrollResult scrollResult = new ScrollResult();
         scrollResult.setList(blogList);
         scrollResult.setMinTime(minTime);
@@ -196,14 +812,81 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(scrollResult);
     }
 
+    /**
+     * 多路归并收件箱和发件箱
+     * 每个zset用一次ZREVRANGEBYSCORE取出分数不超过max的前offset+count条 在一个pipeline中执行
+     * 按分数倒序归并 跳过分数等于max的前offset条 返回count条
+     */
+    @SuppressWarnings("unchecked")
+    private List<ZSetOperations.TypedTuple<String>> mergeFeeds(List<String> keys, long max, int offset, int count) {
+        RedisZSetCommands.Range range = RedisZSetCommands.Range.range().gte(0).lte(max);
+        RedisZSetCommands.Limit limit = RedisZSetCommands.Limit.limit().offset(0).count(offset + count);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zSetCommands().zRevRangeByScoreWithScores(key.getBytes(StandardCharsets.UTF_8), range, limit);
+            }
+            return null;
+        });
+        //每一路的迭代器和当前元素
+        PriorityQueue<Map.Entry<ZSetOperations.TypedTuple<String>, Iterator<ZSetOperations.TypedTuple<String>>>> heap =
+                new PriorityQueue<>(Math.max(1, keys.size()), Map.Entry.comparingByKey(FEED_ORDER));
+        for (Object result : results) {
+            Iterator<ZSetOperations.TypedTuple<String>> iterator =
+                    ((Set<ZSetOperations.TypedTuple<String>>) result).iterator();
+            if (iterator.hasNext()) {
+                heap.add(new AbstractMap.SimpleEntry<>(iterator.next(), iterator));
+            }
+        }
+        List<ZSetOperations.TypedTuple<String>> page = new ArrayList<>(count);
+        //同一篇博文可能同时在收件箱和发件箱中（取消大V登记的过程中） 只取一次 重复的不计入offset和count
+        Set<String> emitted = new HashSet<>();
+        int skipped = 0;
+        while (!heap.isEmpty() && page.size() < count) {
+            Map.Entry<ZSetOperations.TypedTuple<String>, Iterator<ZSetOperations.TypedTuple<String>>> top = heap.poll();
+            ZSetOperations.TypedTuple<String> tuple = top.getKey();
+            if (emitted.add(tuple.getValue())) {
+                if (skipped < offset && Objects.requireNonNull(tuple.getScore()).longValue() == max) {
+                    skipped++;
+                } else {
+                    page.add(tuple);
+                }
+            }
+            if (top.getValue().hasNext()) {
+                heap.add(new AbstractMap.SimpleEntry<>(top.getValue().next(), top.getValue()));
+            }
+        }
+        return page;
+    }
+
     public void isLiked(Blog blog){
         UserDTO userDTO = UserHolder.getUser();
         if (userDTO == null) {
             return;
         }
         Long userId = userDTO.getId();
-        String key = "blog:like:" + blog.getId();
+        String key = RedisConstants.BLOG_LIKE_KEY + blog.getId();
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
         blog.setIsLike(score != null);
     }
+
+    /**
+     * 批量判断当前用户是否点赞 所有ZSCORE在一次pipeline中执行
+     */
+    public void isLiked(List<Blog> blogs) {
+        UserDTO userDTO = UserHolder.getUser();
+        if (userDTO == null || blogs.isEmpty()) {
+            return;
+        }
+        byte[] member = userDTO.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                byte[] key = (RedisConstants.BLOG_LIKE_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8);
+                connection.zSetCommands().zScore(key, member);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
 }
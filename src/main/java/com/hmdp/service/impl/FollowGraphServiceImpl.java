@@ -0,0 +1,267 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import com.hmdp.service.IFollowGraphService;
+import com.hmdp.service.IUserCacheService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *  关注关系服务
+ *  粉丝集合 followers:{userId} 粉丝id -> 关注时间 计数 follow:count:{userId} followers/following
+ *  两者由同一个脚本修改 计数和粉丝集合保持一致
+ * </p>
+ */
+@Slf4j
+@Service
+public class FollowGraphServiceImpl implements IFollowGraphService {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private FollowMapper followMapper;
+    @Resource
+    private IUserCacheService userCacheService;
+    @Resource
+    private RedissonClient redissonClient;
+    @Value("${hmdp.follow.graph.backfill-chunk-size:1000}")
+    private int backfillChunkSize;
+    @Value("${hmdp.follow.graph.backfill-check-minutes:10}")
+    private long backfillCheckMinutes;
+    private static final String FOLLOWERS_FIELD = "followers";
+    private static final String FOLLOWING_FIELD = "following";
+    private static final DefaultRedisScript<Long> FOLLOW_GRAPH_SCRIPT;
+    static {
+        FOLLOW_GRAPH_SCRIPT = new DefaultRedisScript<>();
+        FOLLOW_GRAPH_SCRIPT.setResultType(Long.class);
+        FOLLOW_GRAPH_SCRIPT.setLocation(new ClassPathResource("follow_graph.lua"));
+    }
+    private ScheduledExecutorService backfillExecutor;
+
+    /**
+     * 启动后检查是否已经回填过 没有则从tb_follow回填 定时重试直到完成
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startBackfill() {
+        backfillExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("follow-graph-backfill-", true));
+        backfillExecutor.scheduleWithFixedDelay(this::backfill, 0, backfillCheckMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void stopBackfill() {
+        if (backfillExecutor != null) {
+            backfillExecutor.shutdown();
+        }
+    }
+
+    @Override
+    public void onFollow(Long userId, Long followUserId) {
+        stringRedisTemplate.execute(FOLLOW_GRAPH_SCRIPT, keys(userId, followUserId),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), "1");
+    }
+
+    @Override
+    public void onUnfollow(Long userId, Long followUserId) {
+        stringRedisTemplate.execute(FOLLOW_GRAPH_SCRIPT, keys(userId, followUserId),
+                userId.toString(), "0", "-1");
+    }
+
+    private static List<String> keys(Long userId, Long followUserId) {
+        return Arrays.asList(RedisConstants.FOLLOWERS_KEY + followUserId,
+                RedisConstants.FOLLOW_COUNT_KEY + followUserId,
+                RedisConstants.FOLLOW_COUNT_KEY + userId);
+    }
+
+    /**
+     * 粉丝数 回填完成前查询数据库
+     */
+    @Override
+    public long followerCount(Long userId) {
+        if (!isReady()) {
+            return followMapper.selectCount(new QueryWrapper<Follow>().eq("follow_user_id", userId));
+        }
+        Object count = stringRedisTemplate.opsForHash().get(RedisConstants.FOLLOW_COUNT_KEY + userId, FOLLOWERS_FIELD);
+        return count == null ? 0 : Long.parseLong(count.toString());
+    }
+
+    /**
+     * 关注数和粉丝数 回填完成前查询数据库
+     */
+    @Override
+    public Result queryCounts(Long userId) {
+        Map<String, Long> counts = new HashMap<>();
+        if (!isReady()) {
+            counts.put(FOLLOWERS_FIELD, (long) followMapper.selectCount(new QueryWrapper<Follow>().eq("follow_user_id", userId)));
+            counts.put(FOLLOWING_FIELD, (long) followMapper.selectCount(new QueryWrapper<Follow>().eq("user_id", userId)));
+            return Result.ok(counts);
+        }
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(RedisConstants.FOLLOW_COUNT_KEY + userId,
+                Arrays.asList(FOLLOWERS_FIELD, FOLLOWING_FIELD));
+        counts.put(FOLLOWERS_FIELD, values.get(0) == null ? 0 : Long.parseLong(values.get(0).toString()));
+        counts.put(FOLLOWING_FIELD, values.get(1) == null ? 0 : Long.parseLong(values.get(1).toString()));
+        return Result.ok(counts);
+    }
+
+    /**
+     * 粉丝列表 按关注时间倒序滚动分页 用法与关注的博文相同
+     */
+    @Override
+    public Result queryFollowers(Long userId, Long max, Integer offset) {
+        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
+                .reverseRangeByScoreWithScores(RedisConstants.FOLLOWERS_KEY + userId, 0, max, offset, SystemConstants.MAX_PAGE_SIZE);
+        if (typedTuples == null || typedTuples.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = new ArrayList<>(typedTuples.size());
+        long minTime = 0;
+        int i = 1;
+        for (ZSetOperations.TypedTuple<String> tuple : typedTuples) {
+            ids.add(Long.valueOf(Objects.requireNonNull(tuple.getValue())));
+            long time = Objects.requireNonNull(tuple.getScore()).longValue();
+            if (time == minTime) {
+                i++;
+            } else {
+                minTime = time;
+                i = 1;
+            }
+        }
+        //整页的分数都等于max时 下一页还要跳过这一页之前已经跳过的
+        if (minTime == max) {
+            i += offset;
+        }
+        Map<Long, UserDTO> userMap = userCacheService.getAll(ids);
+        ScrollResult scrollResult = new ScrollResult();
+        scrollResult.setList(ids.stream().map(userMap::get).filter(Objects::nonNull).collect(Collectors.toList()));
+        scrollResult.setMinTime(minTime);
+        scrollResult.setOffset(i);
+        return Result.ok(scrollResult);
+    }
+
+    /**
+     * 关注列表 按被关注用户id升序 以上一页最后一个用户id为游标
+     * 直接查tb_follow 走(user_id, follow_user_id)联合索引 不需要回表
+     */
+    @Override
+    public Result queryFollowing(Long userId, Long lastId) {
+        List<Follow> follows = followMapper.selectList(new QueryWrapper<Follow>()
+                .select("follow_user_id")
+                .eq("user_id", userId).gt("follow_user_id", lastId == null ? 0 : lastId)
+                .orderByAsc("follow_user_id").last("limit " + SystemConstants.MAX_PAGE_SIZE));
+        if (follows.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = follows.stream().map(Follow::getFollowUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> userMap = userCacheService.getAll(ids);
+        return Result.ok(ids.stream().map(userMap::get).filter(Objects::nonNull).collect(Collectors.toList()));
+    }
+
+    private boolean isReady() {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.FOLLOW_GRAPH_READY_KEY));
+    }
+
+    /**
+     * 按tb_follow的id分批回填 每批用一次pipeline执行关注脚本 每批完成后记录游标 中断后从游标处继续
+     * 脚本先SCRIPT LOAD 每行只发送EVALSHA 脚本被清除时本次回填失败 下次重试时重新加载
+     * 脚本只在粉丝集合变化时计数 与线上的关注操作同时执行也不会重复计数
+     * 只回填开始时的最大id之前的数据 之后的关注由线上操作写入
+     */
+    private void backfill() {
+        if (isReady()) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(RedisConstants.FOLLOW_GRAPH_BACKFILL_LOCK);
+        try {
+            if (!lock.tryLock()) {
+                return;
+            }
+        } catch (Exception e) {
+            log.warn("获取关注关系回填锁失败", e);
+            return;
+        }
+        try {
+            String key = RedisConstants.FOLLOW_GRAPH_BACKFILL_KEY;
+            Map<Object, Object> progress = stringRedisTemplate.opsForHash().entries(key);
+            long cursor = progress.isEmpty() ? 0 : Long.parseLong(progress.get("cursor").toString());
+            long maxId;
+            if (progress.isEmpty()) {
+                Follow last = followMapper.selectOne(new QueryWrapper<Follow>().select("id").orderByDesc("id").last("limit 1"));
+                maxId = last == null ? 0 : last.getId();
+                Map<String, String> task = new HashMap<>();
+                task.put("cursor", "0");
+                task.put("maxId", String.valueOf(maxId));
+                stringRedisTemplate.opsForHash().putAll(key, task);
+            } else {
+                maxId = Long.parseLong(progress.get("maxId").toString());
+            }
+            String sha = stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptingCommands()
+                    .scriptLoad(FOLLOW_GRAPH_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+            while (cursor < maxId) {
+                List<Follow> follows = followMapper.selectList(new QueryWrapper<Follow>()
+                        .select("id", "user_id", "follow_user_id", "create_time")
+                        .gt("id", cursor).le("id", maxId)
+                        .orderByAsc("id").last("limit " + backfillChunkSize));
+                if (follows.isEmpty()) {
+                    break;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Follow follow : follows) {
+                        long time = follow.getCreateTime() == null ? 0
+                                : follow.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                        List<String> keysAndArgs = new ArrayList<>(keys(follow.getUserId(), follow.getFollowUserId()));
+                        keysAndArgs.add(follow.getUserId().toString());
+                        keysAndArgs.add(String.valueOf(time));
+                        keysAndArgs.add("1");
+                        connection.scriptingCommands().evalSha(sha, ReturnType.INTEGER, 3,
+                                keysAndArgs.stream().map(s -> s.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new));
+                    }
+                    return null;
+                });
+                cursor = follows.get(follows.size() - 1).getId();
+                stringRedisTemplate.opsForHash().put(key, "cursor", String.valueOf(cursor));
+            }
+            stringRedisTemplate.opsForValue().set(RedisConstants.FOLLOW_GRAPH_READY_KEY, "1");
+            stringRedisTemplate.delete(key);
+            log.info("关注关系回填完成 最大id {}", maxId);
+        } catch (Exception e) {
+            log.error("关注关系回填失败 等待重试", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
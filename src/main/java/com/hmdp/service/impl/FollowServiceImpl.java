@@ -1,21 +1,48 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.ThreadUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
+import com.hmdp.entity.User;
 import com.hmdp.mapper.FollowMapper;
+import com.hmdp.service.IFollowGraphService;
 import com.hmdp.service.IFollowService;
+import com.hmdp.service.IUserCacheService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -26,12 +53,52 @@ import java.util.stream.Collectors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private UserServiceImpl userService;
+    @Resource
+    private IUserCacheService userCacheService;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private IFollowGraphService followGraphService;
+    @Value("${hmdp.follow.repair-interval-minutes:60}")
+    private long repairIntervalMinutes;
+    private static final int REPAIR_CHUNK_SIZE = 500;
+    private ScheduledExecutorService repairExecutor;
+    /**
+     * 共同关注最多返回的用户数
+     */
+    @Value("${hmdp.follow.common.max-size:1000}")
+    private int commonMaxSize;
+    @Value("${hmdp.follow.common.cache-seconds:60}")
+    private long commonCacheSeconds;
+    /**
+     * 较小的关注集合不超过该值时用SINTER 否则分批扫描
+     */
+    @Value("${hmdp.follow.common.sinter-max-size:2000}")
+    private long commonSinterMaxSize;
+    private static final int COMMON_SCAN_BATCH = 200;
+
+    /**
+     * 关注集合 follows:{userId} 从数据库加载后带有占位成员 没有占位成员说明还没有加载过
+     * 定时比对数据库修复不一致
+     */
+    @PostConstruct
+    private void startRepair() {
+        repairExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("follows-repair-", true));
+        repairExecutor.scheduleWithFixedDelay(this::repairFollows, repairIntervalMinutes, repairIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void stopRepair() {
+        repairExecutor.shutdown();
+    }
+
     /**
      * 关注功能
      * @param followUserId 被关注的用户id
@@ -40,7 +107,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     @Override
     public Result follow(Long followUserId, Boolean isFollow) {
         Long userId = UserHolder.getUser().getId();
-        String key = "follows:"+ userId;
+        String key = RedisConstants.FOLLOWS_KEY + userId;
         //判断是关注还是取消关注
         if(isFollow) {
             //关注
@@ -49,12 +116,19 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
             follow.setFollowUserId(followUserId);
             boolean save = save(follow);
             if (save) {
-                stringRedisTemplate.opsForSet().add(key,followUserId.toString());
+                if (!loadFollowsIfAbsent(userId)) {
+                    stringRedisTemplate.opsForSet().add(key,followUserId.toString());
+                }
+                //粉丝集合和计数
+                followGraphService.onFollow(userId, followUserId);
             }
         }else {
             //取消关注
-           remove(new QueryWrapper<Follow>().eq("user_id", userId).eq("follow_user_id",followUserId));
+            boolean removed = remove(new QueryWrapper<Follow>().eq("user_id", userId).eq("follow_user_id",followUserId));
             stringRedisTemplate.opsForSet().remove(key,followUserId.toString());
+            if (removed) {
+                followGraphService.onUnfollow(userId, followUserId);
+            }
         }
         return Result.ok();
     }
@@ -64,30 +138,272 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
      */
     @Override
     public Result isFollow(Long followUserId) {
-        //判断是否关注
-        Integer count = query().eq("user_id", UserHolder.getUser().getId()).eq("follow_user_id", followUserId).count();
-        return Result.ok(count>0);
+        return Result.ok(areFollowing(Collections.singletonList(followUserId)).get(followUserId));
     }
+
     /**
-     * 共同关注
+     * 批量判断当前用户是否关注了这些用户 一次SMISMEMBER 同时检查占位成员
+     * 关注集合还没有加载时从数据库加载
      */
     @Override
-    public Result commonFollow(Long id) {
-        Long currentId = UserHolder.getUser().getId();
-        String key = "follows:";
-        //求交集
-        Set<String> set = stringRedisTemplate.opsForSet().intersect(key + currentId, key + id);
-        if (set == null || set.isEmpty()) {
-            return Result.ok(Collections.emptyList());
-        }
-        //转换成List<Long>
-        List<Long> list = set.stream().map(Long::valueOf).collect(Collectors.toList());
-        //查询用户信息
-        List<UserDTO> users = userService.listByIds(list)
+    public Map<Long, Boolean> areFollowing(List<Long> followUserIds) {
+        Long userId = UserHolder.getUser().getId();
+        Map<Long, Boolean> result = new LinkedHashMap<>();
+        if (followUserIds.isEmpty()) {
+            return result;
+        }
+        Object[] members = new Object[followUserIds.size() + 1];
+        members[0] = RedisConstants.FOLLOWS_PLACEHOLDER;
+        for (int i = 0; i < followUserIds.size(); i++) {
+            members[i + 1] = followUserIds.get(i).toString();
+        }
+        Map<Object, Boolean> exists = stringRedisTemplate.opsForSet().isMember(RedisConstants.FOLLOWS_KEY + userId, members);
+        if (exists != null && Boolean.TRUE.equals(exists.get(RedisConstants.FOLLOWS_PLACEHOLDER))) {
+            for (Long id : followUserIds) {
+                result.put(id, Boolean.TRUE.equals(exists.get(id.toString())));
+            }
+            return result;
+        }
+        //没有加载过 从数据库加载
+        Set<String> follows = loadFollows(userId);
+        for (Long id : followUserIds) {
+            result.put(id, follows.contains(id.toString()));
+        }
+        return result;
+    }
+
+    /**
+     * 关注集合还没有加载时从数据库加载
+     * @return 是否执行了加载
+     */
+    public boolean loadFollowsIfAbsent(Long userId) {
+        Boolean loaded = stringRedisTemplate.opsForSet()
+                .isMember(RedisConstants.FOLLOWS_KEY + userId, RedisConstants.FOLLOWS_PLACEHOLDER);
+        if (Boolean.TRUE.equals(loaded)) {
+            return false;
+        }
+        loadFollows(userId);
+        return true;
+    }
+
+    /**
+     * 从数据库读取关注列表写入关注集合 并加上占位成员 返回关注的用户id
+     * 并发加载只会重复写入相同的成员
+     */
+    private Set<String> loadFollows(Long userId) {
+        Set<String> follows = query().select("follow_user_id").eq("user_id", userId).list()
                 .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .map(follow -> follow.getFollowUserId().toString())
+                .collect(Collectors.toSet());
+        List<String> members = new ArrayList<>(follows);
+        members.add(RedisConstants.FOLLOWS_PLACEHOLDER);
+        stringRedisTemplate.opsForSet().add(RedisConstants.FOLLOWS_KEY + userId, members.toArray(new String[0]));
+        return follows;
+    }
+
+    /**
+     * 按用户id分批比对已加载的关注集合和数据库 补上缺少的 删掉多余的
+     * 先读redis再读数据库 比对期间新增的关注在两边都能读到 不会被误删
+     */
+    private void repairFollows() {
+        RLock lock = redissonClient.getLock(RedisConstants.FOLLOWS_REPAIR_LOCK);
+        try {
+            if (!lock.tryLock()) {
+                return;
+            }
+        } catch (Exception e) {
+            log.warn("获取关注集合修复锁失败", e);
+            return;
+        }
+        try {
+            long lastId = 0;
+            int repaired = 0;
+            while (true) {
+                List<Long> userIds = userService.query().select("id")
+                        .gt("id", lastId).orderByAsc("id").last("limit " + REPAIR_CHUNK_SIZE).list()
+                        .stream().map(User::getId).collect(Collectors.toList());
+                if (userIds.isEmpty()) {
+                    break;
+                }
+                repaired += repairFollows(userIds);
+                lastId = userIds.get(userIds.size() - 1);
+                if (userIds.size() < REPAIR_CHUNK_SIZE) {
+                    break;
+                }
+            }
+            log.info("关注集合修复完成 修复 {} 个用户", repaired);
+        } catch (Exception e) {
+            log.error("关注集合修复失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int repairFollows(List<Long> userIds) {
+        //一次pipeline读取这批用户的关注集合
+        List<Object> cached = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long userId : userIds) {
+                connection.sMembers((RedisConstants.FOLLOWS_KEY + userId).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        Map<Long, Set<String>> loaded = new HashMap<>();
+        for (int i = 0; i < userIds.size(); i++) {
+            Set<String> members = (Set<String>) cached.get(i);
+            //没有加载过的集合不需要修复 读取时会从数据库加载
+            if (members != null && members.contains(RedisConstants.FOLLOWS_PLACEHOLDER)) {
+                loaded.put(userIds.get(i), members);
+            }
+        }
+        if (loaded.isEmpty()) {
+            return 0;
+        }
+        Map<Long, Set<String>> actual = new HashMap<>();
+        for (Follow follow : query().select("user_id", "follow_user_id").in("user_id", loaded.keySet()).list()) {
+            actual.computeIfAbsent(follow.getUserId(), id -> new HashSet<>()).add(follow.getFollowUserId().toString());
+        }
+        Map<String, String[]> toAdd = new HashMap<>();
+        Map<String, String[]> toRemove = new HashMap<>();
+        loaded.forEach((userId, members) -> {
+            Set<String> follows = actual.getOrDefault(userId, Collections.emptySet());
+            String key = RedisConstants.FOLLOWS_KEY + userId;
+            String[] missing = follows.stream().filter(id -> !members.contains(id)).toArray(String[]::new);
+            String[] extra = members.stream()
+                    .filter(id -> !RedisConstants.FOLLOWS_PLACEHOLDER.equals(id) && !follows.contains(id))
+                    .toArray(String[]::new);
+            if (missing.length > 0) {
+                toAdd.put(key, missing);
+            }
+            if (extra.length > 0) {
+                toRemove.put(key, extra);
+            }
+        });
+        if (toAdd.isEmpty() && toRemove.isEmpty()) {
+            return 0;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            toAdd.forEach((key, ids) -> connection.sAdd(bytes(key), toBytes(ids)));
+            toRemove.forEach((key, ids) -> connection.sRem(bytes(key), toBytes(ids)));
+            return null;
+        });
+        Set<String> keys = new HashSet<>(toAdd.keySet());
+        keys.addAll(toRemove.keySet());
+        return keys.size();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[][] toBytes(String[] values) {
+        byte[][] result = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = bytes(values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * 共同关注 分页
+     * 交集按用户id排序 最多保留commonMaxSize个 短时间缓存在follow:common:{小id}:{大id}
+     */
+    @Override
+    public Result commonFollow(Long id, Integer current) {
+        Long currentId = UserHolder.getUser().getId();
+        List<Long> common = queryCommonFollows(currentId, id);
+        int from = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        if (from < 0 || from >= common.size()) {
+            return Result.ok(Collections.emptyList(), (long) common.size());
+        }
+        List<Long> page = common.subList(from, Math.min(from + SystemConstants.MAX_PAGE_SIZE, common.size()));
+        //只查询当前页的用户信息 走用户缓存
+        Map<Long, UserDTO> userMap = userCacheService.getAll(page);
+        List<UserDTO> users = page.stream().map(userMap::get).filter(Objects::nonNull).collect(Collectors.toList());
+        return Result.ok(users, (long) common.size());
+    }
+
+    private List<Long> queryCommonFollows(Long userId, Long otherId) {
+        String cacheKey = RedisConstants.FOLLOWS_COMMON_KEY + Math.min(userId, otherId) + ":" + Math.max(userId, otherId);
+        String cached = stringRedisTemplate.opsForValue().get(cacheKey);
+        if (cached != null) {
+            return cached.isEmpty() ? Collections.emptyList()
+                    : Arrays.stream(cached.split(",")).map(Long::valueOf).collect(Collectors.toList());
+        }
+        loadFollowsIfAbsent(userId);
+        loadFollowsIfAbsent(otherId);
+        String key = RedisConstants.FOLLOWS_KEY + userId;
+        String otherKey = RedisConstants.FOLLOWS_KEY + otherId;
+        Long size = stringRedisTemplate.opsForSet().size(key);
+        Long otherSize = stringRedisTemplate.opsForSet().size(otherKey);
+        if (size == null || otherSize == null) {
+            return Collections.emptyList();
+        }
+        String small = size <= otherSize ? key : otherKey;
+        String large = small.equals(key) ? otherKey : key;
+        Set<String> members;
+        if (Math.min(size, otherSize) <= commonSinterMaxSize) {
+            //小集合不大时直接SINTER
+            members = stringRedisTemplate.opsForSet().intersect(small, large);
+        } else {
+            //小集合也很大时分批扫描 用SMISMEMBER判断是否在大集合中 只保留最小的commonMaxSize个id
+            members = intersectByScan(small, large);
+        }
+        List<Long> common = members == null ? new ArrayList<>() : members.stream()
+                .filter(member -> !RedisConstants.FOLLOWS_PLACEHOLDER.equals(member))
+                .map(Long::valueOf)
+                .sorted()
+                .limit(commonMaxSize)
                 .collect(Collectors.toList());
-        return Result.ok(users);
+        stringRedisTemplate.opsForValue().set(cacheKey,
+                common.stream().map(String::valueOf).collect(Collectors.joining(",")),
+                commonCacheSeconds, TimeUnit.SECONDS);
+        return common;
     }
-}
 
+    /**
+     * 扫描整个小集合 只保留交集中最小的commonMaxSize个id 与SINTER后排序截取的结果相同
+     */
+    private Set<String> intersectByScan(String small, String large) {
+        //大顶堆 堆顶是当前保留的最大id
+        PriorityQueue<Long> heap = new PriorityQueue<>(Comparator.reverseOrder());
+        //SSCAN可能多次返回同一个成员 堆中已有的id不再加入
+        //被淘汰或没有进堆的id不小于堆顶 而堆顶只会变小 再次出现时同样进不了堆
+        Set<Long> kept = new HashSet<>();
+        List<String> batch = new ArrayList<>(COMMON_SCAN_BATCH);
+        ScanOptions options = ScanOptions.scanOptions().count(COMMON_SCAN_BATCH).build();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(small, options)) {
+            while (cursor.hasNext()) {
+                String member = cursor.next();
+                if (!RedisConstants.FOLLOWS_PLACEHOLDER.equals(member)) {
+                    batch.add(member);
+                }
+                if (batch.isEmpty() || (batch.size() < COMMON_SCAN_BATCH && cursor.hasNext())) {
+                    continue;
+                }
+                Map<Object, Boolean> exists = stringRedisTemplate.opsForSet().isMember(large, batch.toArray());
+                if (exists != null) {
+                    exists.forEach((m, in) -> {
+                        if (!Boolean.TRUE.equals(in)) {
+                            return;
+                        }
+                        long id = Long.parseLong(m.toString());
+                        if (kept.contains(id)) {
+                            return;
+                        }
+                        if (heap.size() < commonMaxSize) {
+                            heap.add(id);
+                            kept.add(id);
+                        } else if (commonMaxSize > 0 && id < heap.peek()) {
+                            kept.remove(heap.poll());
+                            heap.add(id);
+                            kept.add(id);
+                        }
+                    });
+                }
+                batch.clear();
+            }
+        }
+        return heap.stream().map(String::valueOf).collect(Collectors.toSet());
+    }
+}
@@ -1,57 +1,305 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.ShopCacheProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.RedisConstant;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
 import com.hmdp.utils.CacheClient;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.ShopGeoGrid;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.ShopTextIndex;
 import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
-    // 缓存重建线程池
-    private static final ExecutorService CACHE_REBUILD_POOL = Executors.newFixedThreadPool(10);
+    @Resource
+    private ShopCacheProperties shopCacheProperties;
+    @Resource
+    private IdBloomFilters idBloomFilters;
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+    @Resource
+    private ShopSearchIndex shopSearchIndex;
+    /**
+     * 按距离查询商铺的半径 米
+     */
+    private static final double SHOP_GEO_RADIUS = 5000;
+    private static final int GEO_REBUILD_CHUNK_SIZE = 1000;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Value("${hmdp.shop.geo.rebuild-interval-hours:24}")
+    private long geoRebuildIntervalHours;
+    private ScheduledExecutorService geoRebuildExecutor;
+
+    /**
+     * 注册商铺id布隆过滤器 按id顺序分批加载
+     */
+    @PostConstruct
+    private void registerBloomFilter() {
+        idBloomFilters.register(IdBloomFilters.SHOP, (afterId, limit) -> query().select("id")
+                .gt("id", afterId).orderByAsc("id").last("limit " + limit)
+                .list().stream().map(Shop::getId).collect(Collectors.toList()));
+        shopGeoIndex.register((afterId, limit) -> query().select("id", "type_id", "x", "y")
+                .gt("id", afterId).orderByAsc("id").last("limit " + limit).list());
+        shopSearchIndex.register((afterId, limit) -> query().select("id", "name", "area")
+                        .gt("id", afterId).orderByAsc("id").last("limit " + limit).list(),
+                since -> query().select("id", "name", "area").ge("update_time", since).list());
+    }
+
+    /**
+     * 新增商铺 同时加入布隆过滤器和位置索引
+     */
+    @Override
+    public boolean save(Shop shop) {
+        shop.setUpdateTime(LocalDateTime.now());
+        boolean success = super.save(shop);
+        if (success) {
+            afterCommit(() -> {
+                idBloomFilters.add(IdBloomFilters.SHOP, shop.getId());
+                shopGeoIndex.put(shop);
+                geoAdd(shop);
+                shopSearchIndex.put(shop);
+            });
+        }
+        return success;
+    }
+
+    /**
+     * 事务提交后再执行 其他请求和重建任务读到的数据库已经是新数据 没有事务时立即执行
+     */
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * 写入 shop:geo:{typeId} 全量重建期间同时写入临时key 并记录商铺id 替换前按数据库重新写入
+     */
+    private void geoAdd(Shop shop) {
+        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        Point point = new Point(shop.getX(), shop.getY());
+        stringRedisTemplate.opsForGeo().add(RedisConstants.SHOP_GEO_KEY + shop.getTypeId(), point, shop.getId().toString());
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.SHOP_GEO_REBUILDING_KEY))) {
+            stringRedisTemplate.opsForGeo().add(RedisConstants.SHOP_GEO_TMP_KEY + shop.getTypeId(), point, shop.getId().toString());
+            stringRedisTemplate.opsForSet().add(RedisConstants.SHOP_GEO_DIRTY_KEY, shop.getId().toString());
+        }
+    }
+
+    private void geoRemove(Long typeId, Long shopId) {
+        stringRedisTemplate.opsForGeo().remove(RedisConstants.SHOP_GEO_KEY + typeId, shopId.toString());
+        stringRedisTemplate.opsForGeo().remove(RedisConstants.SHOP_GEO_TMP_KEY + typeId, shopId.toString());
+    }
+
+    /**
+     * 重建期间修改过的商铺 按数据库的当前值重新写入临时key
+     * 重建读到的可能是修改之前的数据 写入临时key时覆盖了这次修改 类型变化时还会留在原类型的临时key中
+     * 这里之后的修改由geoAdd同时写入临时key
+     */
+    private void reapplyGeoChanges(List<Long> typeIds, Set<Long> rebuilt) {
+        Set<String> dirty = stringRedisTemplate.opsForSet().members(RedisConstants.SHOP_GEO_DIRTY_KEY);
+        if (dirty == null || dirty.isEmpty()) {
+            return;
+        }
+        List<Long> ids = dirty.stream().map(Long::valueOf).collect(Collectors.toList());
+        Map<Long, Shop> shopMap = query().select("id", "type_id", "x", "y").in("id", ids).list().stream()
+                .collect(Collectors.toMap(Shop::getId, Function.identity()));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long id : ids) {
+                byte[] member = id.toString().getBytes(StandardCharsets.UTF_8);
+                for (Long typeId : typeIds) {
+                    connection.zSetCommands().zRem((RedisConstants.SHOP_GEO_TMP_KEY + typeId).getBytes(StandardCharsets.UTF_8), member);
+                }
+                Shop shop = shopMap.get(id);
+                if (shop == null || shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                    continue;
+                }
+                connection.geoCommands().geoAdd((RedisConstants.SHOP_GEO_TMP_KEY + shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                        new Point(shop.getX(), shop.getY()), member);
+                rebuilt.add(shop.getTypeId());
+            }
+            return null;
+        });
+        log.info("商铺位置重建期间修改了 {} 家商铺 已重新写入", ids.size());
+    }
+
+    /**
+     * shop:geo:{typeId} 不存在时启动后立即重建 之后定时重建 平时由新增/修改商铺增量维护
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startGeoRebuild() {
+        geoRebuildExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("shop-geo-rebuild-", true));
+        Long existing = stringRedisTemplate.countExistingKeys(shopTypeService.list().stream()
+                .map(type -> RedisConstants.SHOP_GEO_KEY + type.getId()).collect(Collectors.toList()));
+        long initialDelay = existing != null && existing > 0 ? geoRebuildIntervalHours : 0;
+        geoRebuildExecutor.scheduleWithFixedDelay(this::rebuildGeo, initialDelay, geoRebuildIntervalHours, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    private void stopGeoRebuild() {
+        if (geoRebuildExecutor != null) {
+            geoRebuildExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 按id顺序分批读取tb_shop 每批用一次pipeline写入各类型的临时key 全部完成后RENAME替换
+     * 没有商铺的类型删除原来的key
+     */
+    private void rebuildGeo() {
+        RLock lock = redissonClient.getLock(RedisConstants.SHOP_GEO_REBUILD_LOCK);
+        try {
+            if (!lock.tryLock()) {
+                return;
+            }
+        } catch (Exception e) {
+            log.warn("获取商铺位置重建锁失败", e);
+            return;
+        }
+        try {
+            List<Long> typeIds = shopTypeService.list().stream().map(ShopType::getId).collect(Collectors.toList());
+            stringRedisTemplate.delete(typeIds.stream().map(id -> RedisConstants.SHOP_GEO_TMP_KEY + id).collect(Collectors.toList()));
+            stringRedisTemplate.delete(RedisConstants.SHOP_GEO_DIRTY_KEY);
+            stringRedisTemplate.opsForValue().set(RedisConstants.SHOP_GEO_REBUILDING_KEY, "1", 1, TimeUnit.HOURS);
+            Set<Long> rebuilt = new HashSet<>();
+            long lastId = 0;
+            int total = 0;
+            while (true) {
+                List<Shop> shops = query().select("id", "type_id", "x", "y")
+                        .gt("id", lastId).orderByAsc("id").last("limit " + GEO_REBUILD_CHUNK_SIZE).list();
+                if (shops.isEmpty()) {
+                    break;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Shop shop : shops) {
+                        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                            continue;
+                        }
+                        connection.geoCommands().geoAdd(
+                                (RedisConstants.SHOP_GEO_TMP_KEY + shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                                new Point(shop.getX(), shop.getY()),
+                                shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+                        rebuilt.add(shop.getTypeId());
+                    }
+                    return null;
+                });
+                lastId = shops.get(shops.size() - 1).getId();
+                total += shops.size();
+                if (shops.size() < GEO_REBUILD_CHUNK_SIZE) {
+                    break;
+                }
+            }
+            reapplyGeoChanges(typeIds, rebuilt);
+            //重新写入后临时key可能被删空
+            rebuilt.removeIf(typeId -> !Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.SHOP_GEO_TMP_KEY + typeId)));
+            for (Long typeId : rebuilt) {
+                stringRedisTemplate.rename(RedisConstants.SHOP_GEO_TMP_KEY + typeId, RedisConstants.SHOP_GEO_KEY + typeId);
+            }
+            typeIds.removeAll(rebuilt);
+            if (!typeIds.isEmpty()) {
+                stringRedisTemplate.delete(typeIds.stream().map(id -> RedisConstants.SHOP_GEO_KEY + id).collect(Collectors.toList()));
+            }
+            log.info("商铺位置重建完成 {} 家商铺", total);
+        } catch (Exception e) {
+            log.error("商铺位置重建失败", e);
+        } finally {
+            //无论重建是否成功都清除重建标记 清除失败也要释放锁 标记会在过期后失效
+            try {
+                stringRedisTemplate.delete(Arrays.asList(RedisConstants.SHOP_GEO_REBUILDING_KEY, RedisConstants.SHOP_GEO_DIRTY_KEY));
+            } catch (Exception e) {
+                log.error("清除商铺位置重建标记失败", e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 
     /**
      * 将热点数据写入redis 其中expireTime为逻辑过期时间
      */
     public void writeDataToRedis(Long id, Long expireTime){
         Shop shop = getById(id);
-        RedisData data = new RedisData();
-        data.setData(shop);
-        data.setExpireTime(LocalDateTime.now().plusSeconds(expireTime));
-        stringRedisTemplate.opsForValue().set(RedisConstant.SHOP_CACHE + id, JSONUtil.toJsonStr(data));
+        cacheClient.setWithLogicalExpire(RedisConstant.SHOP_CACHE + id, shop, expireTime, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 启动后预热热点商铺 写入逻辑过期缓存
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpHotShops() {
+        List<Long> hotIds = shopCacheProperties.getHotIds();
+        if (hotIds.isEmpty()) {
+            return;
+        }
+        List<Shop> shops = listByIds(hotIds);
+        for (Shop shop : shops) {
+            cacheClient.setWithLogicalExpire(RedisConstant.SHOP_CACHE + shop.getId(), shop,
+                    shopCacheProperties.getLogicalExpireMinutes(), TimeUnit.MINUTES);
+        }
+        log.info("预热热点商铺缓存 {} 条", shops.size());
     }
 
     /**
      * 更新商铺信息
      * 先更新数据库，再删除缓存 防止脏数据
+     * 删除缓存和更新位置、搜索索引都在事务提交之后执行
      */
     @Override
     @Transactional(rollbackFor = Exception.class)
@@ -59,13 +307,40 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (shop.getId() == null || shop.getId() <= 0) {
             return Result.fail("商铺id不能为空");
         }
+        //位置或类型变化时需要原来的类型
+        boolean geoChanged = shop.getX() != null || shop.getY() != null || shop.getTypeId() != null;
+        boolean textChanged = shop.getName() != null || shop.getArea() != null;
+        Shop old = geoChanged ? getById(shop.getId()) : null;
+        //请求中带了update_time时ON UPDATE不会生效 搜索索引按update_time增量同步 这里显式设置
+        shop.setUpdateTime(LocalDateTime.now());
         updateById(shop);
-        stringRedisTemplate.delete(RedisConstant.SHOP_CACHE + shop.getId());
+        //只修改了部分字段时位置/类型/名称以数据库为准
+        Shop current = geoChanged || textChanged ? getById(shop.getId()) : null;
+        afterCommit(() -> {
+            cacheClient.delete(RedisConstant.SHOP_CACHE + shop.getId());
+            if (current == null) {
+                return;
+            }
+            if (geoChanged) {
+                if (old != null && old.getTypeId() != null && !old.getTypeId().equals(current.getTypeId())) {
+                    geoRemove(old.getTypeId(), shop.getId());
+                }
+                shopGeoIndex.put(current);
+                geoAdd(current);
+            }
+            if (textChanged) {
+                shopSearchIndex.put(current);
+            }
+        });
         return Result.ok();
     }
 
+    /**
+     * 根据类型查询商铺 带坐标时按距离排序
+     * 传入上一页最后一条的distance和id作为游标时从游标处继续 否则按current分页
+     */
     @Override
-    public Result queryByType(Integer typeId, Integer current, Double x, Double y){
+    public Result queryByType(Integer typeId, Integer current, Double x, Double y, Double lastDistance, Long lastId){
         // 如果x和y为空 则根据类型分页查询
         if (x == null || y == null) {
             // 根据类型分页查询
@@ -75,47 +350,92 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             // 返回数据
             return Result.ok(page.getRecords());
         }
-        String key = "shop:geo:" + typeId;
-        //计算分页参数
-        int start = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
-        int end = SystemConstants.DEFAULT_PAGE_SIZE * current;
-        // GEOSEARCH KEY BYLONLAT x y BYRADIUS 10 WITHDISSATNCE
-        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo()
-                .search(key,
-                        GeoReference.fromCoordinate(x, y),
-                        new Distance(5000),
-                        RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs()
-                                .includeDistance()
-                                .limit(end)
-                );
-        if (results == null) {
+        boolean cursor = lastDistance != null && lastId != null;
+        if (!cursor && (current == null || current < 1 || current > SystemConstants.MAX_PAGE_NUM)) {
             return Result.ok(Collections.emptyList());
         }
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
-        if (list.size()<=start){
+        //计算分页参数
+        int start = cursor ? 0 : (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = start + SystemConstants.DEFAULT_PAGE_SIZE;
+        //优先查本地索引 只保留前end条 不需要排序半径内的全部商铺
+        List<ShopGeoGrid.Hit> hits = shopGeoIndex.search(typeId, x, y, SHOP_GEO_RADIUS,
+                cursor ? lastDistance : -1, cursor ? lastId : 0, end);
+        if (hits == null) {
+            hits = searchByRedis(typeId, x, y, cursor ? lastDistance : -1, cursor ? lastId : 0, cursor ? 0 : end);
+        }
+        if (hits.size() <= start) {
             return Result.ok(Collections.emptyList());
         }
-        List<Long> ids = new ArrayList<>(list.size());
-        Map<Long,Distance> map = new HashMap<>(list.size());
-        //截取分页数据
-        list.stream().skip(start).forEach(result->{
-            String shopId = result.getContent().getName();
-            Distance distance = result.getDistance();
-            ids.add(Long.valueOf(shopId));
-            map.put(Long.valueOf(shopId),distance);
-        });
-        String join = StrUtil.join(",", ids);
-        //根据商铺id查询商铺信息
-        List<Shop> shops = query().in("id", ids)
-                .last("Order by field(id," + join + ")")
-                .list();
-        for (Shop shop : shops) {
-            Distance distance = map.get(shop.getId());
-            shop.setDistance(distance.getValue());
+        hits = hits.subList(start, Math.min(end, hits.size()));
+        //根据商铺id查询商铺信息 按距离顺序返回
+        List<Long> ids = hits.stream().map(ShopGeoGrid.Hit::getId).collect(Collectors.toList());
+        Map<Long, Shop> shopMap = listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+        List<Shop> shops = new ArrayList<>(hits.size());
+        for (ShopGeoGrid.Hit hit : hits) {
+            Shop shop = shopMap.get(hit.getId());
+            if (shop != null) {
+                shop.setDistance(hit.getDistance());
+                shops.add(shop);
+            }
         }
         return Result.ok(shops);
     }
 
+    /**
+     * 根据名称或商圈关键字分页查询 按匹配程度排序
+     * 本地索引还没有加载完成时按名称LIKE查询数据库
+     */
+    @Override
+    public Result queryByName(String name, Integer current) {
+        if (current == null || current < 1 || current > SystemConstants.MAX_PAGE_NUM) {
+            return Result.ok(Collections.emptyList());
+        }
+        int offset = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        ShopTextIndex.SearchResult result = StrUtil.isBlank(name) ? null
+                : shopSearchIndex.search(name, offset, SystemConstants.MAX_PAGE_SIZE);
+        if (result == null) {
+            //与本地索引一致 名称或商圈包含关键字
+            Page<Shop> page = query()
+                    .and(StrUtil.isNotBlank(name), wrapper -> wrapper.like("name", name).or().like("area", name))
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords(), page.getTotal());
+        }
+        if (result.getIds().isEmpty()) {
+            return Result.ok(Collections.emptyList(), result.getTotal());
+        }
+        Map<Long, Shop> shopMap = listByIds(result.getIds()).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+        List<Shop> shops = result.getIds().stream().map(shopMap::get).filter(Objects::nonNull).collect(Collectors.toList());
+        return Result.ok(shops, result.getTotal());
+    }
+
+    /**
+     * 本地索引还没有加载完成时查询redis GEO
+     * 按current分页时取前limit条 按游标分页时取半径内的全部再过滤
+     */
+    private List<ShopGeoGrid.Hit> searchByRedis(Integer typeId, Double x, Double y, double afterDistance, long afterId, int limit) {
+        String key = RedisConstants.SHOP_GEO_KEY + typeId;
+        // GEOSEARCH KEY BYLONLAT x y BYRADIUS 5000 WITHDISTANCE ASC
+        RedisGeoCommands.GeoSearchCommandArgs args = RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs()
+                .includeDistance()
+                .sortAscending();
+        if (limit > 0) {
+            args.limit(limit);
+        }
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo()
+                .search(key, GeoReference.fromCoordinate(x, y), new Distance(SHOP_GEO_RADIUS), args);
+        if (results == null) {
+            return Collections.emptyList();
+        }
+        List<ShopGeoGrid.Hit> hits = new ArrayList<>(results.getContent().size());
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : results.getContent()) {
+            long id = Long.parseLong(result.getContent().getName());
+            double distance = result.getDistance().getValue();
+            if (distance > afterDistance || (distance == afterDistance && id > afterId)) {
+                hits.add(new ShopGeoGrid.Hit(id, distance));
+            }
+        }
+        return hits;
+    }
 
     /**
      * 缓存击穿解决方案
@@ -131,8 +451,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id<=0) {
             return Result.fail("商铺id不能为空");
         }
-        Shop shop = cacheClient.queryWithThrough(RedisConstant.SHOP_CACHE, id, Shop.class, this::getById, RedisConstant.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //Shop = cacheClient.queryWithLogicalExpire(RedisConstant.SHOP_CACHE + id, id, Shop.class, this::getById, RedisConstant.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //布隆过滤器判断不存在的id 直接返回 不再查redis和数据库
+        if (!idBloomFilters.mightContain(IdBloomFilters.SHOP, id)) {
+            return Result.fail("商铺不存在");
+        }
+        Shop shop;
+        if (shopCacheProperties.isLogicalExpire()) {
+            shop = queryWithLogicalExpire(id);
+        } else {
+            shop = cacheClient.queryWithThrough(RedisConstant.SHOP_CACHE, id, Shop.class, this::getById, RedisConstant.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
         if (shop == null) {
             return Result.fail("商铺不存在");
         }
@@ -145,79 +473,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      */
     @Override
     public Shop queryWithThrough(Long id) {
-        // 先从缓存中查询 cache:shop::
-        String s = stringRedisTemplate.opsForValue().get(RedisConstant.SHOP_CACHE + id);
-        if (StrUtil.isNotBlank(s)) {
-            return JSONUtil.toBean(s, Shop.class);
-        }
-        //如果返回的是空字符串 ""
-        if (s!=null){
-            //返回错误信息
-            return null;
-        }
-        //如果缓存中没有,再从数据库中查询
-        Shop shop = this.getById(id);
-        if (shop == null) {
-            //将空值写入缓存
-            stringRedisTemplate.opsForValue().set(RedisConstant.SHOP_CACHE + id, "", RedisConstant.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        //写入缓存
-        stringRedisTemplate.opsForValue().set(RedisConstant.SHOP_CACHE + id, JSONUtil.toJsonStr(shop), RedisConstant.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        return shop;
-    }
-
-    private boolean tryLock(String key){
-        Boolean b = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstant.LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(b);
-    }
-
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+        //缓存值的格式由CacheClient按前缀的编解码决定 不再直接读写字符串
+        return cacheClient.queryWithThrough(RedisConstant.SHOP_CACHE, id, Shop.class, this::getById,
+                RedisConstant.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     //  互斥锁解决缓存击穿
+    //  同一节点内的并发请求合并为一次加载 跨节点由 lock:shop:: 互斥 拿不到锁时有限时间内等待重建结果
     public Shop queryWithBreakdown(Long id){
-        //先判断是否为异常值
-        String key = RedisConstant.SHOP_CACHE + id;
-        //先从缓存中查询
-        String s = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isNotBlank(s)) {
-            return JSONUtil.toBean(s, Shop.class);
-        }
-        //如果返回的是空字符串 ""
-        if (s!=null){
-            //返回错误信息
-            return null;
-        }
-        //创建互斥锁 "lock:shop::" + id
-        String lockKey = RedisConstant.SHOP_LOCK + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            if(!isLock){
-                //失败则休眠一段时间后重试
-                Thread.sleep(50);
-                return queryWithBreakdown(id);
-            }
-            //获取锁成功查询数据库
-            shop = this.getById(id);
-            //模拟高并发场景
-            Thread.sleep(200);
-            if (shop == null) {
-                //将空值写入缓存
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstant.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                unlock(lockKey);
-                return null;
-            }
-            //写入缓存
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstant.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            unlock(lockKey);
-        }
-        return shop;
+        return cacheClient.queryWithThrough(RedisConstant.SHOP_CACHE, id, Shop.class, this::getById,
+                RedisConstant.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
@@ -225,32 +490,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * 利用逻辑过期时间
      */
     private Shop queryWithLogicalExpire(Long id) {
-        //先从缓存中查询
-        String s = stringRedisTemplate.opsForValue().get(RedisConstant.SHOP_CACHE + id);
-        if (StrUtil.isBlank(s)) {
-            return null;
-        }
-        //如果存在 判断是否过期
-        RedisData data = JSONUtil.toBean(s, RedisData.class);
-        // 如果未过期 直接返回
-        if (data.getExpireTime().isAfter(LocalDateTime.now())) {
-            return (Shop) data.getData();
-        }
-        // 如果过期 利用互斥锁防止缓存击穿
-        String lockKey = RedisConstant.SHOP_LOCK + id;
-        boolean lock = tryLock(lockKey);
-        //如果获取锁成功 开启独立线程异步更新缓存
-        if (lock) {
-            CACHE_REBUILD_POOL.submit(()->{
-                try {
-                    this.writeDataToRedis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unlock(lockKey);
-                }
-            });
-        }
-        return JSONUtil.toBean(s, Shop.class);
+        return cacheClient.queryWithLogicalExpire(RedisConstant.SHOP_CACHE, id, Shop.class, this::getById,
+                shopCacheProperties.getLogicalExpireMinutes(), TimeUnit.MINUTES);
     }
 }
@@ -0,0 +1,63 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.RedisConstant;
+import com.hmdp.entity.UserInfo;
+import com.hmdp.service.IUserCacheService;
+import com.hmdp.service.IUserInfoService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *  用户资料缓存 先查本地缓存 再用一次MGET查redis 剩下的一次listByIds
+ *  返回的是缓存中的对象 调用方不要修改
+ * </p>
+ */
+@Service
+public class UserCacheServiceImpl implements IUserCacheService {
+    @Resource
+    private IUserService userService;
+    @Resource
+    private IUserInfoService userInfoService;
+    @Resource
+    private CacheClient cacheClient;
+
+    @Override
+    public UserDTO get(Long id) {
+        return getAll(Collections.singletonList(id)).get(id);
+    }
+
+    @Override
+    public Map<Long, UserDTO> getAll(Collection<Long> ids) {
+        return cacheClient.queryAllWithThrough(RedisConstant.USER_CACHE, ids, UserDTO.class, UserDTO::getId,
+                this::loadUsers, RedisConstant.CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public UserInfo getInfo(Long userId) {
+        return getInfoAll(Collections.singletonList(userId)).get(userId);
+    }
+
+    @Override
+    public Map<Long, UserInfo> getInfoAll(Collection<Long> userIds) {
+        return cacheClient.queryAllWithThrough(RedisConstant.USER_INFO_CACHE, userIds, UserInfo.class, UserInfo::getUserId,
+                userInfoService::listByIds, RedisConstant.CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    private List<UserDTO> loadUsers(List<Long> ids) {
+        return userService.listByIds(ids).stream()
+                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .collect(Collectors.toList());
+    }
+}
@@ -2,10 +2,12 @@ package com.hmdp.service.impl;
 
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.RedisConstant;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.mapper.UserInfoMapper;
 import com.hmdp.service.IUserInfoService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -22,4 +24,26 @@ import javax.annotation.Resource;
  */
 @Service
 public class UserInfoServiceImpl extends ServiceImpl<UserInfoMapper, UserInfo> implements IUserInfoService {
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 修改用户详情 先更新数据库 再删除缓存
+     */
+    @Override
+    public boolean updateById(UserInfo userInfo) {
+        boolean success = super.updateById(userInfo);
+        cacheClient.delete(RedisConstant.USER_INFO_CACHE + userInfo.getUserId());
+        return success;
+    }
+
+    /**
+     * 新增用户详情 删除之前缓存的空值
+     */
+    @Override
+    public boolean save(UserInfo userInfo) {
+        boolean success = super.save(userInfo);
+        cacheClient.delete(RedisConstant.USER_INFO_CACHE + userInfo.getUserId());
+        return success;
+    }
 }
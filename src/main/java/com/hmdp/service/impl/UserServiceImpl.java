@@ -2,14 +2,19 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.RedisConstant;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.LoginSessions;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -18,12 +23,13 @@ import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
-import java.util.UUID;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -40,6 +46,47 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     private RedisTemplate<String,Object> redisTemplate;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IdBloomFilters idBloomFilters;
+    @Resource
+    private LoginSessions loginSessions;
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 注册用户id布隆过滤器 按id顺序分批加载
+     */
+    @PostConstruct
+    private void registerBloomFilter() {
+        idBloomFilters.register(IdBloomFilters.USER, (afterId, limit) -> query().select("id")
+                .gt("id", afterId).orderByAsc("id").last("limit " + limit)
+                .list().stream().map(User::getId).collect(Collectors.toList()));
+    }
+
+    /**
+     * 新增用户 同时加入布隆过滤器
+     */
+    @Override
+    public boolean save(User user) {
+        boolean success = super.save(user);
+        if (success) {
+            idBloomFilters.add(IdBloomFilters.USER, user.getId());
+            //删除之前缓存的空值
+            cacheClient.delete(RedisConstant.USER_CACHE + user.getId());
+        }
+        return success;
+    }
+
+    /**
+     * 修改用户 先更新数据库 再删除缓存
+     */
+    @Override
+    public boolean updateById(User user) {
+        boolean success = super.updateById(user);
+        cacheClient.delete(RedisConstant.USER_CACHE + user.getId());
+        return success;
+    }
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //校验手机号
@@ -94,13 +141,23 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             user = this.createUserByPhone(loginForm.getPhone());
         }
         //将用户信息保存到redis 利用hash结构存储
-        String token = UUID.randomUUID().toString();
         UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        //使用RedisTemplate
-        redisTemplate.opsForHash().putAll("login:token:"+token, BeanUtil.beanToMap(userDTO));
+        //使用RedisTemplate 或签名token
+        String token = loginSessions.create(userDTO);
         return Result.ok(token);
     }
 
+    /**
+     * 退出登录 删除token 同时清除各节点的本地缓存
+     */
+    @Override
+    public Result logout(String token) {
+        if (StrUtil.isNotBlank(token)) {
+            loginSessions.remove(token);
+        }
+        return Result.ok();
+    }
+
 
     @Override
     public User createUserByPhone(String phone) {
@@ -1,18 +1,29 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.ThreadUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.OrderStreamStatsDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.PendingEntry;
 import org.redisson.api.RLock;
+import org.redisson.api.RStream;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.redisson.api.StreamMessageId;
+import org.redisson.api.stream.StreamAddArgs;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -21,13 +32,17 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -48,84 +63,324 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private RedissonClient redisClient;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+    /**
+     * 代理对象 用于在消费线程中以事务方式执行createOrders
+     * 消费线程中拿不到AopContext 所以这里直接注入
+     */
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+    @Value("${hmdp.seckill.order.consumers:4}")
+    private int consumerCount;
+    @Value("${hmdp.seckill.order.batch-size:50}")
+    private int batchSize;
+    @Value("${hmdp.seckill.order.block-millis:2000}")
+    private long blockMillis;
+    @Value("${hmdp.seckill.order.recover-interval-millis:30000}")
+    private long recoverIntervalMillis;
+    @Value("${hmdp.seckill.order.recover-min-idle-millis:60000}")
+    private long recoverMinIdleMillis;
+    @Value("${hmdp.seckill.order.recover-max-backoff-millis:600000}")
+    private long recoverMaxBackoffMillis;
+    @Value("${hmdp.seckill.order.max-attempts:5}")
+    private int maxAttempts;
+    /**
+     * 有分片stream时逐个非阻塞读取 都没有消息时的等待时间
+     */
+    @Value("${hmdp.seckill.order.shard-poll-millis:100}")
+    private long shardPollMillis;
+    /**
+     * 从登记集合刷新分片stream的间隔
+     */
+    private static final long STREAM_REFRESH_MILLIS = 5000;
+    /**
+     * 消费出错后的暂停时间 防止redis不可用时空转
+     */
+    private static final long CONSUMER_ERROR_PAUSE_MILLIS = 200;
+    private RStream<String, String> deadLetterStream;
+    /**
+     * 所有订单stream 第一个是单key模式的stream.orders 其余是分片stream
+     */
+    private volatile List<String> orderStreams = Collections.singletonList(RedisConstants.SECKILL_ORDER_STREAM);
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong recoveredCount = new AtomicLong();
+    private final AtomicLong deadCount = new AtomicLong();
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setResultType(Long.class);
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
     }
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_STOCK_SCRIPT;
+    static {
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_STOCK_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_STOCK_SCRIPT.setResultType(Long.class);
+        SECKILL_SHARD_STOCK_SCRIPT.setLocation(new ClassPathResource("seckill_shard_stock.lua"));
+    }
     /**
      * 初始化方法
      * 只要容器初始化了这个类，就会执行这个方法
+     * 每个节点启动consumerCount个消费者 消费者名称为 pid@host-c{i} 保证不同实例之间不重名
      */
-    //线程池 这里用的是Executors.newSingleThreadExecutor() 单线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private ExecutorService seckillOrderExecutor;
+    private ScheduledExecutorService orderRecoveryExecutor;
+    private volatile boolean running = true;
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandle());
+        deadLetterStream = redisClient.getStream(RedisConstants.SECKILL_ORDER_DEAD_STREAM, StringCodec.INSTANCE);
+        seckillStockShards.createGroupIfAbsent(RedisConstants.SECKILL_ORDER_STREAM);
+        refreshOrderStreams();
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount,
+                ThreadUtil.newNamedThreadFactory("seckill-order-", false));
+        String instance = ManagementFactory.getRuntimeMXBean().getName();
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandle(instance + "-c" + i));
+        }
+        //启动时立即巡检一次pending-list 之后定时巡检
+        orderRecoveryExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("seckill-order-recovery-", true));
+        orderRecoveryExecutor.scheduleWithFixedDelay(new PendingOrderRecovery(instance + "-recovery"),
+                0, recoverIntervalMillis, TimeUnit.MILLISECONDS);
+        orderRecoveryExecutor.scheduleWithFixedDelay(this::refreshOrderStreams,
+                STREAM_REFRESH_MILLIS, STREAM_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        seckillOrderExecutor.shutdown();
+        orderRecoveryExecutor.shutdown();
+    }
+
+    /**
+     * 从登记集合刷新分片stream 新出现的stream先确保消费者组存在
+     */
+    private void refreshOrderStreams() {
+        try {
+            List<String> known = orderStreams;
+            List<String> streams = new ArrayList<>();
+            streams.add(RedisConstants.SECKILL_ORDER_STREAM);
+            seckillStockShards.orderStreams().stream().sorted().forEach(stream -> {
+                if (!known.contains(stream)) {
+                    seckillStockShards.createGroupIfAbsent(stream);
+                }
+                streams.add(stream);
+            });
+            orderStreams = streams;
+        } catch (Exception e) {
+            log.error("刷新订单stream失败", e);
+        }
     }
 
     private class VoucherOrderHandle implements Runnable{
-        String queueName = "stream.orders";
+        private final String consumerName;
+
+        VoucherOrderHandle(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    //从消息队列中取出订单信息 XREADGROUP GROUP g1 c1 COUNT 1 Block 2000 STREAMS stream.orders >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed()));
-                    if (list == null || list.isEmpty()) {
+                    List<String> streams = orderStreams;
+                    if (streams.size() == 1) {
+                        //从消息队列中批量取出订单信息 XREADGROUP GROUP g1 consumer COUNT batchSize BLOCK 2000 STREAMS stream.orders >
+                        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                                Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),
+                                StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(blockMillis)),
+                                StreamOffset.create(RedisConstants.SECKILL_ORDER_STREAM, ReadOffset.lastConsumed()));
+                        if (list != null && !list.isEmpty()) {
+                            handleVoucherOrders(list);
+                        }
                         continue;
                     }
-                    //订单获取成功 解析订单信息
-                    MapRecord<String, Object, Object> entries;
-                    entries = list.get(0);
-                    Map<Object, Object> value = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    handleVoucherOrder(voucherOrder);
-                    //确认消息
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", entries.getId());
+                    //分片stream不在同一个slot 不能在一次XREADGROUP中读取 逐个非阻塞读取
+                    boolean empty = true;
+                    for (String stream : streams) {
+                        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                                Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),
+                                StreamReadOptions.empty().count(batchSize),
+                                StreamOffset.create(stream, ReadOffset.lastConsumed()));
+                        if (list != null && !list.isEmpty()) {
+                            handleVoucherOrders(list);
+                            empty = false;
+                        }
+                    }
+                    if (empty) {
+                        ThreadUtil.sleep(shardPollMillis);
+                    }
                 } catch (Exception e) {
+                    //未确认的消息留在pending-list中 由PendingOrderRecovery认领重试 这里不退出循环
                     log.error("处理订单异常",e);
-                    break;
-                    //handlePendingList();
+                    ThreadUtil.sleep(CONSUMER_ERROR_PAUSE_MILLIS);
                 }
             }
         }
+    }
 
-        private void handlePendingList() {
-            while(true){
-                try {
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    if (list == null || list.isEmpty()) {
-                        //如果获取失败
+    /**
+     * pending-list巡检
+     * 启动时以及每隔recoverIntervalMillis执行一次 认领所有消费者（包括已经下线的实例）中空闲超时的消息
+     * 1.投递次数达到maxAttempts的消息转入死信队列 stream.orders.dlq 并确认
+     * 2.其余消息按投递次数指数退避 空闲时间超过退避时间的才重新认领处理
+     * 3.整批处理失败时逐条处理 单条坏消息不会拖住其他消息
+     */
+    private class PendingOrderRecovery implements Runnable {
+        private final String consumerName;
+
+        PendingOrderRecovery(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            for (String stream : orderStreams) {
+                if (!running) {
+                    return;
+                }
+                recoverStream(redisClient.getStream(stream, StringCodec.INSTANCE));
+            }
+        }
+
+        private void recoverStream(RStream<String, String> orderStream) {
+            try {
+                StreamMessageId startId = StreamMessageId.MIN;
+                while (running) {
+                    //XPENDING stream.orders g1 IDLE minIdle start + count
+                    List<PendingEntry> entries = orderStream.listPending(RedisConstants.SECKILL_ORDER_GROUP,
+                            startId, StreamMessageId.MAX, recoverMinIdleMillis, TimeUnit.MILLISECONDS, batchSize);
+                    if (entries.isEmpty()) {
                         break;
                     }
-                    //订单获取成功 解析订单信息
-                    MapRecord<String, Object, Object> entries = list.get(0);
-                    Map<Object, Object> values = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    handleVoucherOrder(voucherOrder);
-                    //确认消息
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", entries.getId());
-                }
-                catch (Exception e) {
-                    log.error("处理pendingList异常",e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                    recover(orderStream, entries);
+                    if (entries.size() < batchSize) {
+                        break;
                     }
+                    StreamMessageId last = entries.get(entries.size() - 1).getId();
+                    startId = new StreamMessageId(last.getId0(), last.getId1() + 1);
                 }
+            } catch (Exception e) {
+                log.error("处理pendingList异常 {}", orderStream.getName(), e);
             }
         }
+
+        private void recover(RStream<String, String> orderStream, List<PendingEntry> entries) {
+            Set<StreamMessageId> deadIds = new HashSet<>();
+            List<StreamMessageId> claimIds = new ArrayList<>(entries.size());
+            for (PendingEntry entry : entries) {
+                long deliveryCount = entry.getLastTimeDelivered();
+                if (deliveryCount >= maxAttempts) {
+                    deadIds.add(entry.getId());
+                    claimIds.add(entry.getId());
+                } else if (entry.getIdleTime() >= backoffMillis(deliveryCount)) {
+                    claimIds.add(entry.getId());
+                }
+            }
+            if (claimIds.isEmpty()) {
+                return;
+            }
+            //XCLAIM 把消息转移到巡检消费者名下 同时拿到消息内容
+            Map<StreamMessageId, Map<String, String>> claimed = orderStream.claim(RedisConstants.SECKILL_ORDER_GROUP,
+                    consumerName, recoverMinIdleMillis, TimeUnit.MILLISECONDS, claimIds.toArray(new StreamMessageId[0]));
+            Map<StreamMessageId, VoucherOrder> retry = new LinkedHashMap<>();
+            for (StreamMessageId id : claimIds) {
+                Map<String, String> value = claimed.get(id);
+                if (value == null || value.isEmpty()) {
+                    //消息已经被其他节点认领或已被删除
+                    continue;
+                }
+                if (deadIds.contains(id)) {
+                    moveToDeadLetter(orderStream, id, value);
+                } else {
+                    retry.put(id, BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true));
+                }
+            }
+            if (retry.isEmpty()) {
+                return;
+            }
+            retriedCount.addAndGet(retry.size());
+            try {
+                proxy.createOrders(new ArrayList<>(retry.values()));
+                orderStream.ack(RedisConstants.SECKILL_ORDER_GROUP, retry.keySet().toArray(new StreamMessageId[0]));
+                recoveredCount.addAndGet(retry.size());
+                return;
+            } catch (Exception e) {
+                log.warn("批量重试订单失败 改为逐条重试: {}", e.getMessage());
+            }
+            retry.forEach((id, order) -> {
+                try {
+                    proxy.createOrders(Collections.singletonList(order));
+                    orderStream.ack(RedisConstants.SECKILL_ORDER_GROUP, id);
+                    recoveredCount.incrementAndGet();
+                } catch (Exception e) {
+                    log.error("重试订单失败 id:{}", id, e);
+                }
+            });
+        }
+
+        private void moveToDeadLetter(RStream<String, String> orderStream, StreamMessageId id, Map<String, String> value) {
+            Map<String, String> entries = new HashMap<>(value);
+            entries.put("source", orderStream.getName());
+            entries.put("sourceId", id.toString());
+            deadLetterStream.add(StreamAddArgs.entries(entries));
+            orderStream.ack(RedisConstants.SECKILL_ORDER_GROUP, id);
+            deadCount.incrementAndGet();
+            log.error("订单消息投递{}次仍失败 转入死信队列 id:{} value:{}", maxAttempts, id, value);
+        }
+    }
+
+    /**
+     * 退避时间 minIdle * 2^(deliveryCount-1) 上限为recoverMaxBackoffMillis
+     */
+    private long backoffMillis(long deliveryCount) {
+        int shift = (int) Math.min(Math.max(deliveryCount - 1, 0), 20);
+        return Math.min(recoverMinIdleMillis << shift, recoverMaxBackoffMillis);
+    }
+
+    /**
+     * 订单消息队列统计信息
+     */
+    @Override
+    public Result queryOrderStreamStats() {
+        OrderStreamStatsDTO stats = new OrderStreamStatsDTO();
+        long pending = 0;
+        for (String stream : orderStreams) {
+            pending += redisClient.<String, String>getStream(stream, StringCodec.INSTANCE)
+                    .getPendingInfo(RedisConstants.SECKILL_ORDER_GROUP).getTotal();
+        }
+        stats.setPending(pending);
+        stats.setRetried(retriedCount.get());
+        stats.setRecovered(recoveredCount.get());
+        stats.setDead(deadCount.get());
+        stats.setDeadLetterSize(deadLetterStream.size());
+        return Result.ok(stats);
     }
 
+    /**
+     * 批量处理订单 一批消息只开一次事务 并且用一次XACK确认整批消息
+     */
+    private void handleVoucherOrders(List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        RecordId[] recordIds = new RecordId[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            MapRecord<String, Object, Object> record = records.get(i);
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            recordIds[i] = record.getId();
+        }
+        proxy.createOrders(orders);
+        //确认消息 一批消息来自同一个stream
+        stringRedisTemplate.opsForStream().acknowledge(
+                records.get(0).getStream(), RedisConstants.SECKILL_ORDER_GROUP, recordIds);
+    }
 
     /**
      * 处理订单 从阻塞队列中取出订单信息 生成订单
@@ -166,33 +421,84 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     /**
      * 秒杀业务
      * 在这里执行lua脚本
-     * 创建一个代理对象 用于执行createOrder方法
      */
-    private IVoucherOrderService proxy;
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //售罄的券直接在本地拒绝 不分配订单id也不执行脚本
+        if (seckillSoldOutCache.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        //获取订单id
+        //获取订单id 脚本需要订单id才能原子地写入消息队列 所以在售罄判断之后、执行脚本之前分配
         long orderId = redisIdWorker.nextId("order");
-        //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(),String.valueOf(orderId)
-        );
-        //2.判断结果是为0
-        assert result != null;
-        int r = result.intValue();
+        int shards = seckillStockShards.shardCount(voucherId);
+        int r;
+        if (shards > 1) {
+            //分片模式
+            r = seckillOnShards(voucherId, userId, orderId, shards);
+        } else {
+            //1.执行lua脚本
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(),String.valueOf(orderId)
+            );
+            //2.判断结果是为0
+            assert result != null;
+            r = result.intValue();
+        }
         if ((r != 0)) {
-            //2.1 不为0，代表没有购买资格
+            //2.1 不为0，代表没有购买资格 库存不足时标记售罄
+            if (r == 1) {
+                seckillSoldOutCache.markSoldOut(voucherId);
+            }
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
-        // 3.获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         //3.返还订单id
         return Result.ok(orderId);
     }
+
+    /**
+     * 分片秒杀
+     * 1.在用户的主分片上判断一人一单并扣库存
+     * 2.主分片库存耗尽时 脚本在主分片上写入带过期时间的占位 再依次到兄弟分片扣库存
+     * 3.兄弟分片扣减成功后才把用户记入主分片的一人一单集合 最后删除占位
+     */
+    private int seckillOnShards(Long voucherId, Long userId, long orderId, int shards) {
+        String[] args = {voucherId.toString(), userId.toString(), String.valueOf(orderId)};
+        int home = seckillStockShards.homeShard(userId, shards);
+        String reserveKey = seckillStockShards.reserveKey(voucherId, home, userId);
+        Long result = stringRedisTemplate.execute(
+                SECKILL_SHARD_SCRIPT,
+                Arrays.asList(seckillStockShards.stockKey(voucherId, home), seckillStockShards.orderKey(voucherId, home),
+                        seckillStockShards.streamKey(voucherId, home), reserveKey),
+                voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                String.valueOf(SeckillStockShards.RESERVE_MILLIS)
+        );
+        assert result != null;
+        if (result != 3) {
+            return result.intValue();
+        }
+        try {
+            for (int i = 1; i < shards; i++) {
+                int shard = (home + i) % shards;
+                Long stockResult = stringRedisTemplate.execute(
+                        SECKILL_SHARD_STOCK_SCRIPT,
+                        Arrays.asList(seckillStockShards.stockKey(voucherId, shard), seckillStockShards.streamKey(voucherId, shard)),
+                        (Object[]) args
+                );
+                if (stockResult != null && stockResult == 0) {
+                    stringRedisTemplate.opsForSet().add(seckillStockShards.orderKey(voucherId, home), userId.toString());
+                    return 0;
+                }
+            }
+            return 1;
+        } finally {
+            //删除失败时占位也会自动过期
+            stringRedisTemplate.delete(reserveKey);
+        }
+    }
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
 //        Long userId = UserHolder.getUser().getId();
@@ -247,4 +553,40 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             }
             save(order);
     }
+
+    /**
+     * 批量创建订单
+     * 1.过滤掉已经落库的订单（消息被重复投递）
+     * 2.按优惠券分组 每张券只执行一次 stock = stock - n
+     *   库存不足时抛出异常回滚整批 消息留在pending中 由巡检逐条重试
+     * 3.多行INSERT写入订单
+     */
+    @Override
+    @Transactional
+    public void createOrders(List<VoucherOrder> orders) {
+        List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> existIds = query().select("id").in("id", ids).list()
+                .stream()
+                .map(VoucherOrder::getId)
+                .collect(Collectors.toSet());
+        List<VoucherOrder> newOrders = orders.stream()
+                .filter(order -> !existIds.contains(order.getId()))
+                .collect(Collectors.toList());
+        if (newOrders.isEmpty()) {
+            return;
+        }
+        Map<Long, Long> countByVoucher = newOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countByVoucher.forEach((voucherId, count) -> {
+            //stock >= count 防止超卖
+            boolean update = seckillVoucherService.update().setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", count)
+                    .update();
+            if (!update) {
+                throw new IllegalStateException("库存不足 voucherId:" + voucherId + " count:" + count);
+            }
+        });
+        getBaseMapper().insertBatch(newOrders);
+    }
 }
@@ -7,7 +7,8 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillStockShards;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -25,7 +26,9 @@ import java.util.List;
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
@@ -49,7 +52,27 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存库存到redis
-        stringRedisTemplate.opsForValue().set("seckill:stock:"+voucher.getId(), String.valueOf(voucher.getStock()));
+        // 保存库存到redis 分片数大于1时拆分到多个子计数器
+        seckillStockShards.initStock(voucher.getId(), voucher.getStock(), seckillStockShards.getDefaultShards());
+    }
+
+    /**
+     * 补充秒杀库存 同步数据库和redis 并清除各节点的售罄标记
+     */
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充数量必须大于0");
+        }
+        boolean update = seckillVoucherService.update().setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!update) {
+            return Result.fail("秒杀券不存在");
+        }
+        seckillStockShards.addStock(voucherId, count);
+        seckillSoldOutCache.clear(voucherId);
+        return Result.ok();
     }
 }
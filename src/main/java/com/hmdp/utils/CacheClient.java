@@ -1,38 +1,118 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.RedisConstant;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Component
 @Slf4j
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
-    private static final ExecutorService CACHE_REBUILD_POOL = Executors.newFixedThreadPool(10);
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 缓存的值按前缀选择编解码 统一以byte[]读写
+     */
+    private final RedisTemplate<String, byte[]> bytesRedisTemplate;
+    private final LocalCache localCache;
+    private final CacheCodecs cacheCodecs;
+    /**
+     * 空值标记 数据库中不存在
+     */
+    private static final byte[] EMPTY = new byte[0];
+    /**
+     * 缓存重建线程池 队列有界 队列满时放弃本次重建
+     */
+    private static final ExecutorService CACHE_REBUILD_POOL = new ThreadPoolExecutor(2, 10,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(200),
+            ThreadUtil.newNamedThreadFactory("cache-rebuild-", true), new ThreadPoolExecutor.AbortPolicy());
+    private static final String CACHE_KEY_PREFIX = "cache:";
+    private static final String LOCK_KEY_PREFIX = "lock:";
+    /**
+     * 加载线程等待其他节点重建的最长时间
+     */
+    private static final long LOAD_WAIT_MILLIS = 1000;
+    /**
+     * 给一次数据库查询预留的时间
+     */
+    private static final long LOAD_QUERY_MILLIS = 2000;
+    /**
+     * 本节点其他线程每一轮等待加载线程的时间 比加载线程最长的耗时还长
+     */
+    private static final long FLIGHT_WAIT_MILLIS = LOAD_WAIT_MILLIS + LOAD_QUERY_MILLIS;
+    /**
+     * 等待的轮数 每轮超时后重新查一次redis 都没有结果才查数据库
+     */
+    private static final int FLIGHT_WAIT_ROUNDS = 2;
+    private static final long LOCK_RETRY_INTERVAL_MILLIS = 50;
+    /**
+     * 正在加载的key
+     */
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       @Qualifier("bytesRedisTemplate") RedisTemplate<String, byte[]> bytesRedisTemplate,
+                       LocalCache localCache, CacheCodecs cacheCodecs) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.bytesRedisTemplate = bytesRedisTemplate;
+        this.localCache = localCache;
+        this.cacheCodecs = cacheCodecs;
     }
     //设置缓存
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,timeUnit);
+        bytesRedisTemplate.opsForValue().set(key, cacheCodecs.forKey(key).encode(value), time, timeUnit);
     }
-    // 设置缓存 逻辑过期
-    private void setLogical(String key,Object value,Long time,TimeUnit timeUnit){
-        RedisData data = new RedisData();
+    // 设置缓存 逻辑过期 redis中的key不设置过期时间
+    public <R> void setWithLogicalExpire(String key,R value,Long time,TimeUnit timeUnit){
+        RedisData<R> data = new RedisData<>();
         data.setData(value);
         data.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value));
+        bytesRedisTemplate.opsForValue().set(key, cacheCodecs.forKey(key).encode(data));
+    }
+    private void setEmpty(String key) {
+        bytesRedisTemplate.opsForValue().set(key, EMPTY, RedisConstant.CACHE_NULL_TTL, TimeUnit.MINUTES);
+    }
+    /**
+     * 删除缓存 同时清除所有节点的本地缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 批量删除缓存
+     */
+    public void deleteAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        keys.forEach(localCache::invalidate);
     }
     private boolean tryLock(String key){
         Boolean b = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstant.LOCK_SHOP_TTL, TimeUnit.SECONDS);
@@ -54,30 +134,244 @@ public class CacheClient {
             String keyPrefix, ID id, Class<R> clazz, Function<ID,R> function,
             Long time,TimeUnit timeUnit){
         String key = keyPrefix + id;
-        // 先从缓存中查询 cache:shop::
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json, clazz);
-        }
-        //如果返回的是空字符串 ""
-        if (json!=null){
-            //返回错误信息
+        // 先查本地缓存
+        Object local = localCache.get(keyPrefix, key);
+        if (local != null) {
+            return clazz.cast(local);
+        }
+        // 再从redis中查询 cache:shop:: 空值标记时value为null
+        Cached<R> cached = readCached(keyPrefix, key, clazz);
+        if (cached != null) {
+            return cached.value;
+        }
+        //如果缓存中没有 同一个key在本节点只有一个线程去加载 其他线程等待同一个结果
+        return singleFlight(key, () -> loadWithMutex(keyPrefix, key, id, clazz, function, time, timeUnit),
+                () -> readCached(keyPrefix, key, clazz), () -> function.apply(id));
+    }
+
+    /**
+     * 批量查询 先查本地缓存 剩下的用一次MGET查redis 都没有的一次性从数据库加载 用pipeline写回redis
+     * 数据库中不存在的id写入空值
+     * @param keyPrefix 缓存key前缀 例如 cache:blog::
+     * @param ids 查询id
+     * @param clazz 返回类型
+     * @param idGetter 从对象中取id 例如 Blog::getId
+     * @param batchLoader 批量查询数据库函数 例如 this::listByIds
+     * @return id -> 对象 不存在的id不在结果中 调用方自行排序
+     */
+    public <R, ID> Map<ID, R> queryAllWithThrough(String keyPrefix, Collection<ID> ids, Class<R> clazz,
+                                                  Function<R, ID> idGetter, Function<List<ID>, List<R>> batchLoader,
+                                                  Long time, TimeUnit timeUnit) {
+        Map<ID, R> result = new HashMap<>(ids.size());
+        //先查本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            Object local = localCache.get(keyPrefix, keyPrefix + id);
+            if (local != null) {
+                result.put(id, clazz.cast(local));
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return result;
+        }
+        //再用一次MGET查redis
+        List<String> keys = new ArrayList<>(remoteIds.size());
+        remoteIds.forEach(id -> keys.add(keyPrefix + id));
+        List<byte[]> values = bytesRedisTemplate.opsForValue().multiGet(keys);
+        CacheCodec codec = cacheCodecs.forKey(keyPrefix);
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes != null && bytes.length == 0) {
+                //空值标记 数据库中不存在
+                continue;
+            }
+            R r = bytes == null ? null : codec.decode(bytes, clazz);
+            if (r == null) {
+                missIds.add(remoteIds.get(i));
+                continue;
+            }
+            localCache.put(keyPrefix, keys.get(i), r);
+            result.put(remoteIds.get(i), r);
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+        //都没有的一次性从数据库加载
+        Map<ID, R> loaded = new HashMap<>(missIds.size());
+        for (R r : batchLoader.apply(missIds)) {
+            loaded.put(idGetter.apply(r), r);
+        }
+        long seconds = timeUnit.toSeconds(time);
+        bytesRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                byte[] key = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                if (r == null) {
+                    connection.stringCommands().set(key, EMPTY, Expiration.from(RedisConstant.CACHE_NULL_TTL, TimeUnit.MINUTES),
+                            RedisStringCommands.SetOption.upsert());
+                } else {
+                    connection.stringCommands().set(key, codec.encode(r), Expiration.seconds(seconds),
+                            RedisStringCommands.SetOption.upsert());
+                }
+            }
             return null;
+        });
+        loaded.forEach((id, r) -> localCache.put(keyPrefix, keyPrefix + id, r));
+        result.putAll(loaded);
+        return result;
+    }
+
+    /**
+     * 合并同一个key的并发加载
+     * 第一个线程执行loader 其他线程等待它的结果 每轮等待FLIGHT_WAIT_MILLIS 超时后用recheck重新查redis
+     * FLIGHT_WAIT_ROUNDS轮都没有结果时才执行fallback查数据库
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader, Supplier<Cached<R>> recheck, Supplier<R> fallback) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            try {
+                for (int round = 0; round < FLIGHT_WAIT_ROUNDS; round++) {
+                    try {
+                        return (R) running.get(FLIGHT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        Cached<R> cached = recheck.get();
+                        if (cached != null) {
+                            return cached.value;
+                        }
+                    }
+                }
+                log.warn("等待缓存加载超时 直接查询数据库 {}", key);
+                return fallback.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
         }
-        //如果缓存中没有,再从数据库中查询
-        R r = function.apply(id);
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 互斥加载 跨节点用redis锁保证只有一个节点查数据库
+     * 拿不到锁时间隔LOCK_RETRY_INTERVAL_MILLIS重新查缓存 最多等待LOAD_WAIT_MILLIS 超时后直接查数据库
+     */
+    private <R,ID> R loadWithMutex(String keyPrefix, String key, ID id, Class<R> clazz, Function<ID,R> function,
+                                   Long time, TimeUnit timeUnit) {
+        String lockKey = lockKey(keyPrefix) + id;
+        long deadline = System.currentTimeMillis() + LOAD_WAIT_MILLIS;
+        while (true) {
+            if (tryLock(lockKey)) {
+                try {
+                    //拿到锁后再查一次缓存 可能已经被其他节点重建
+                    Cached<R> cached = readCached(keyPrefix, key, clazz);
+                    if (cached != null) {
+                        return cached.value;
+                    }
+                    R r = function.apply(id);
+                    if (r == null) {
+                        //将空值写入缓存
+                        setEmpty(key);
+                        return null;
+                    }
+                    //写入缓存
+                    this.set(key, r, time, timeUnit);
+                    localCache.put(keyPrefix, key, r);
+                    return r;
+                } finally {
+                    unlock(lockKey);
+                }
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            //其他节点正在重建 稍后重新查缓存
+            ThreadUtil.sleep(LOCK_RETRY_INTERVAL_MILLIS);
+            Cached<R> cached = readCached(keyPrefix, key, clazz);
+            if (cached != null) {
+                return cached.value;
+            }
+        }
+        log.warn("等待缓存重建超时 直接查询数据库 {}", key);
+        return function.apply(id);
+    }
+
+    /**
+     * 读取redis缓存 未命中时返回null
+     * 无法解析的数据（编解码切换或版本升级前写入的）也按未命中处理 重新加载后会被覆盖
+     */
+    private <R> Cached<R> readCached(String keyPrefix, String key, Class<R> clazz) {
+        byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
+        if (bytes == null) {
+            return null;
+        }
+        if (bytes.length == 0) {
+            return new Cached<>(null);
+        }
+        R r = cacheCodecs.forKey(key).decode(bytes, clazz);
         if (r == null) {
-            //将空值写入缓存
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstant.CACHE_NULL_TTL, TimeUnit.MINUTES);
             return null;
         }
-        //写入缓存
-        this.set(key, r, time, timeUnit);
-        return r;
+        localCache.put(keyPrefix, key, r);
+        return new Cached<>(r);
+    }
+
+    private static class Cached<R> {
+        private final R value;
+
+        Cached(R value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * 查询列表缓存 不设置过期时间 例如商铺类型列表
+     * @param key 缓存key
+     * @param clazz 元素类型
+     * @param loader 查询数据库函数
+     */
+    public <R> List<R> queryList(String key, Class<R> clazz, Supplier<List<R>> loader) {
+        byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
+        if (bytes != null) {
+            List<R> list = cacheCodecs.forKey(key).decodeList(bytes, clazz);
+            if (list != null) {
+                return list;
+            }
+        }
+        List<R> list = loader.get();
+        if (list != null) {
+            bytesRedisTemplate.opsForValue().set(key, cacheCodecs.forKey(key).encode(list));
+        }
+        return list;
+    }
+
+    /**
+     * 缓存key前缀对应的锁前缀 cache:shop:: -> lock:shop::
+     */
+    private String lockKey(String keyPrefix) {
+        return keyPrefix.startsWith(CACHE_KEY_PREFIX)
+                ? LOCK_KEY_PREFIX + keyPrefix.substring(CACHE_KEY_PREFIX.length())
+                : LOCK_KEY_PREFIX + keyPrefix;
     }
 
     /**
-     * 封装缓存击穿查询函数
+     * 封装缓存击穿查询函数 逻辑过期
+     * 热点key在redis中永不过期 逻辑过期后由一个线程异步重建 其他请求先返回旧数据
+     * 缓存中没有时（未预热）按queryWithThrough的方式加载一次并写入逻辑过期缓存
      * @param keyPrefix 缓存key前缀 例如 cache:shop::
      * @param id 查询id
      * @param clazz 返回类型
@@ -87,36 +381,85 @@ public class CacheClient {
      */
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> clazz,Function<ID,R> function,Long time,TimeUnit timeUnit){
         String key = keyPrefix + id;
-        //先从缓存中查询
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isBlank(json)) {
+        //先查本地缓存 本地缓存的过期时间很短 命中时不再判断逻辑过期
+        Object local = localCache.get(keyPrefix, key);
+        if (local != null) {
+            return clazz.cast(local);
+        }
+        //再从redis中查询
+        byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
+        //空值标记 数据库中不存在
+        if (bytes != null && bytes.length == 0) {
             return null;
         }
-        //如果存在 判断是否过期
-        RedisData data = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean(JSONUtil.toJsonStr(data.getData()), clazz);
-        LocalDateTime expireTime = data.getExpireTime();
+        //如果存在 判断是否过期 只解析一次
+        RedisData<R> data = bytes == null ? null : cacheCodecs.forKey(key).decodeLogical(bytes, clazz);
+        if (data == null) {
+            //没有预热的key或者无法解析 只让一个线程去加载
+            return singleFlight(key, () -> loadLogical(keyPrefix, key, id, function, time, timeUnit),
+                    () -> readLogical(key, clazz), () -> function.apply(id));
+        }
+        R r = data.getData();
         // 如果未过期 直接返回
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        if (data.getExpireTime() == null || data.getExpireTime().isAfter(LocalDateTime.now())) {
+            localCache.put(keyPrefix, key, r);
             return r;
         }
         // 如果过期 利用互斥锁防止缓存击穿
-        String lockKey = RedisConstant.SHOP_LOCK + id;
+        String lockKey = lockKey(keyPrefix) + id;
         boolean lock = tryLock(lockKey);
         //如果获取锁成功 开启独立线程异步更新缓存
         if (lock) {
-            CACHE_REBUILD_POOL.submit(()->{
-                try {
-                    //查询数据库
-                    R r1 = function.apply(id);
-                    this.setLogical(key, r1, time, timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unlock(lockKey);
-                }
-            });
+            try {
+                CACHE_REBUILD_POOL.execute(()->{
+                    try {
+                        //查询数据库
+                        R r1 = function.apply(id);
+                        writeLogical(key, r1, time, timeUnit);
+                        localCache.invalidate(key);
+                    } catch (Exception e) {
+                        log.error("重建缓存失败 {}", key, e);
+                    } finally {
+                        unlock(lockKey);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                //重建队列已满 下一次请求再重建
+                unlock(lockKey);
+                log.warn("缓存重建队列已满 {}", key);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * 重新读取逻辑过期缓存 不判断是否过期 未命中时返回null
+     */
+    private <R> Cached<R> readLogical(String key, Class<R> clazz) {
+        byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
+        if (bytes == null) {
+            return null;
+        }
+        if (bytes.length == 0) {
+            return new Cached<>(null);
+        }
+        RedisData<R> data = cacheCodecs.forKey(key).decodeLogical(bytes, clazz);
+        return data == null ? null : new Cached<>(data.getData());
+    }
+
+    private <R,ID> R loadLogical(String keyPrefix, String key, ID id, Function<ID,R> function, Long time, TimeUnit timeUnit) {
+        R r = function.apply(id);
+        writeLogical(key, r, time, timeUnit);
+        localCache.put(keyPrefix, key, r);
+        return r;
+    }
+
+    private <R> void writeLogical(String key, R value, Long time, TimeUnit timeUnit) {
+        if (value == null) {
+            //将空值写入缓存
+            setEmpty(key);
+            return;
         }
-        return JSONUtil.toBean(json, clazz);
+        setWithLogicalExpire(key, value, time, timeUnit);
     }
 }
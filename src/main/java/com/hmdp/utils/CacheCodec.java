@@ -0,0 +1,22 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ * 缓存值的编解码
+ * 解码时遇到无法识别的数据（其他格式或旧版本）返回null 调用方按缓存未命中处理
+ */
+public interface CacheCodec {
+    /**
+     * 编解码名称 对应配置中的 json / kryo
+     */
+    String name();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> clazz);
+
+    <T> List<T> decodeList(byte[] bytes, Class<T> elementType);
+
+    <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> clazz);
+}
@@ -0,0 +1,49 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheCodecProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按key前缀选择缓存的编解码 没有配置的前缀使用默认编解码
+ */
+@Component
+public class CacheCodecs {
+    private final Map<String, CacheCodec> codecs = new HashMap<>();
+    private final Map<String, CacheCodec> prefixes = new LinkedHashMap<>();
+    private final CacheCodec defaultCodec;
+
+    public CacheCodecs(CacheCodecProperties properties) {
+        register(new JsonCacheCodec());
+        register(new KryoCacheCodec());
+        defaultCodec = get(properties.getDefaultCodec());
+        //前缀按长度从长到短排列 优先匹配最长的前缀
+        properties.getPrefixes().entrySet().stream()
+                .sorted((a, b) -> b.getKey().length() - a.getKey().length())
+                .forEach(e -> prefixes.put(e.getKey(), get(e.getValue())));
+    }
+
+    public CacheCodec forKey(String key) {
+        for (Map.Entry<String, CacheCodec> entry : prefixes.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return defaultCodec;
+    }
+
+    private void register(CacheCodec codec) {
+        codecs.put(codec.name(), codec);
+    }
+
+    private CacheCodec get(String name) {
+        CacheCodec codec = codecs.get(name);
+        if (codec == null) {
+            throw new IllegalStateException("未知的缓存编解码 " + name);
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,207 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.dto.BloomFilterStatsDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * id布隆过滤器 防止缓存穿透
+ * 每个节点在本地维护位数组 启动时按id顺序分批从数据库加载 之后定时增量加载新的id
+ * 本节点新增的id通过redis发布订阅同步给其他节点
+ * 实际插入数超过预期容量时按两倍容量重建 重建完成后整体替换
+ * 过滤器加载完成之前一律放行
+ */
+@Slf4j
+@Component
+public class IdBloomFilters {
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private final RedissonClient redissonClient;
+    @Value("${hmdp.bloom.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.bloom.expected-insertions:100000}")
+    private long expectedInsertions;
+    @Value("${hmdp.bloom.false-probability:0.01}")
+    private double falseProbability;
+    @Value("${hmdp.bloom.sync-interval-seconds:300}")
+    private long syncIntervalSeconds;
+    private final Map<String, Holder> filters = new ConcurrentHashMap<>();
+    private RTopic topic;
+    private ScheduledExecutorService syncExecutor;
+
+    public IdBloomFilters(RedissonClient redissonClient) {
+        this.redissonClient = redissonClient;
+    }
+
+    /**
+     * 注册一个过滤器
+     * @param name 过滤器名称
+     * @param idLoader 按id顺序分批加载 (afterId, limit) -> 大于afterId的前limit个id
+     */
+    public void register(String name, BiFunction<Long, Integer, List<Long>> idLoader) {
+        filters.put(name, new Holder(name, idLoader, new LongBloomFilter(expectedInsertions, falseProbability)));
+    }
+
+    /**
+     * 判断id是否可能存在 返回false时id一定不存在
+     */
+    public boolean mightContain(String name, Long id) {
+        if (!enabled || id == null) {
+            return true;
+        }
+        Holder holder = filters.get(name);
+        if (holder == null || !holder.ready) {
+            return true;
+        }
+        return holder.filter.mightContain(id);
+    }
+
+    /**
+     * 新增id 同时通知其他节点
+     */
+    public void add(String name, Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        addLocal(name, id);
+        try {
+            topic.publish(name + ":" + id);
+        } catch (Exception e) {
+            //其他节点会在下一次增量加载时补上
+            log.warn("布隆过滤器新增消息发布失败 {}:{}", name, id, e);
+        }
+    }
+
+    public Map<String, BloomFilterStatsDTO> stats() {
+        Map<String, BloomFilterStatsDTO> stats = new LinkedHashMap<>();
+        filters.forEach((name, holder) -> {
+            LongBloomFilter filter = holder.filter;
+            BloomFilterStatsDTO dto = new BloomFilterStatsDTO();
+            dto.setReady(holder.ready);
+            dto.setMaxId(holder.maxId);
+            dto.setInsertions(filter.getInsertions());
+            dto.setExpectedInsertions(filter.getExpectedInsertions());
+            dto.setBitSize(filter.getBitSize());
+            dto.setHashIterations(filter.getHashIterations());
+            dto.setFalseProbability(filter.getFalseProbability());
+            dto.setEstimatedFalseProbability(filter.estimatedFalseProbability());
+            stats.put(name, dto);
+        });
+        return stats;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        topic = redissonClient.getTopic(RedisConstants.BLOOM_ADD_TOPIC, StringCodec.INSTANCE);
+        topic.addListener(String.class, (channel, msg) -> {
+            int index = msg.lastIndexOf(':');
+            addLocal(msg.substring(0, index), Long.valueOf(msg.substring(index + 1)));
+        });
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("bloom-sync-", true));
+        //第一次执行即全量加载 之后只加载新增的id
+        syncExecutor.scheduleWithFixedDelay(this::syncAll, 0, syncIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+        }
+    }
+
+    private void addLocal(String name, Long id) {
+        Holder holder = filters.get(name);
+        if (holder == null) {
+            return;
+        }
+        holder.filter.add(id);
+        LongBloomFilter rebuilding = holder.rebuilding;
+        if (rebuilding != null) {
+            rebuilding.add(id);
+        }
+    }
+
+    private void syncAll() {
+        filters.values().forEach(holder -> {
+            try {
+                holder.maxId = load(holder, holder.filter, holder.maxId);
+                holder.ready = true;
+                if (holder.filter.getInsertions() > holder.filter.getExpectedInsertions()) {
+                    rebuild(holder, holder.filter.getExpectedInsertions() * 2);
+                }
+            } catch (Exception e) {
+                log.error("布隆过滤器加载失败 {}", holder.name, e);
+            }
+        });
+    }
+
+    /**
+     * 按更大的容量重建 重建期间新增的id同时写入新旧两个过滤器
+     */
+    private void rebuild(Holder holder, long expected) {
+        LongBloomFilter filter = new LongBloomFilter(expected, falseProbability);
+        holder.rebuilding = filter;
+        try {
+            long maxId = load(holder, filter, 0L);
+            holder.filter = filter;
+            holder.maxId = Math.max(holder.maxId, maxId);
+            log.info("布隆过滤器{}已按容量{}重建", holder.name, expected);
+        } finally {
+            holder.rebuilding = null;
+        }
+    }
+
+    /**
+     * 从afterId开始按id顺序分批加载 返回加载到的最大id
+     */
+    private long load(Holder holder, LongBloomFilter filter, long afterId) {
+        long maxId = afterId;
+        while (true) {
+            List<Long> ids = holder.idLoader.apply(maxId, LOAD_BATCH_SIZE);
+            for (Long id : ids) {
+                filter.add(id);
+                maxId = Math.max(maxId, id);
+            }
+            if (ids.size() < LOAD_BATCH_SIZE) {
+                return maxId;
+            }
+        }
+    }
+
+    private static class Holder {
+        private final String name;
+        private final BiFunction<Long, Integer, List<Long>> idLoader;
+        private volatile LongBloomFilter filter;
+        private volatile LongBloomFilter rebuilding;
+        private volatile long maxId;
+        private volatile boolean ready;
+
+        Holder(String name, BiFunction<Long, Integer, List<Long>> idLoader, LongBloomFilter filter) {
+            this.name = name;
+            this.idLoader = idLoader;
+            this.filter = filter;
+        }
+    }
+}
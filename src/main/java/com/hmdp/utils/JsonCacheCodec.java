@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONException;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * hutool json 与原来StringRedisTemplate写入的内容完全一致
+ */
+public class JsonCacheCodec implements CacheCodec {
+    public static final String NAME = "json";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        try {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), clazz);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> elementType) {
+        try {
+            return JSONUtil.toList(new String(bytes, StandardCharsets.UTF_8), elementType);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * json只解析一次 直接从解析结果转换成目标类型
+     */
+    @Override
+    public <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> clazz) {
+        try {
+            JSONObject obj = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+            RedisData<T> data = new RedisData<>();
+            data.setExpireTime(obj.get("expireTime", LocalDateTime.class));
+            JSONObject value = obj.getJSONObject("data");
+            data.setData(value == null ? null : value.toBean(clazz));
+            return data;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+}
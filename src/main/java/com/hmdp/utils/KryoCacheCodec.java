@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+import com.esotericsoftware.kryo.util.DefaultInstantiatorStrategy;
+import com.esotericsoftware.kryo.util.Pool;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.User;
+import com.hmdp.entity.UserInfo;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * kryo二进制格式 字段按顺序写入 不写字段名
+ * 数据以 [MAGIC][SCHEMA 4字节] 开头 SCHEMA是注册类的字段名和类型的摘要
+ * 实体字段有任何变化时摘要随之变化 旧数据按未命中处理 不需要手动维护版本号
+ */
+public class KryoCacheCodec implements CacheCodec {
+    public static final String NAME = "kryo";
+    private static final byte MAGIC = (byte) 0xCB;
+    private static final int HEADER_SIZE = 5;
+    private static final int BUFFER_SIZE = 256;
+    /**
+     * 注册的类 顺序即注册id 只能在末尾追加
+     */
+    private static final List<Class<?>> REGISTERED = Arrays.asList(
+            ArrayList.class, LocalDateTime.class, RedisData.class,
+            Shop.class, ShopType.class, Blog.class, User.class, UserDTO.class, UserInfo.class);
+    private static final int FIRST_ID = 100;
+    private static final int SCHEMA = schema();
+    /**
+     * Kryo不是线程安全的 每个线程从池中借用
+     */
+    private final Pool<Kryo> kryoPool = new Pool<Kryo>(true, false, 64) {
+        @Override
+        protected Kryo create() {
+            return newKryo();
+        }
+    };
+
+    private static Kryo newKryo() {
+        Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(false);
+        kryo.setReferences(false);
+        kryo.setDefaultSerializer(FieldSerializer.class);
+        kryo.setInstantiatorStrategy(new DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
+        for (int i = 0; i < REGISTERED.size(); i++) {
+            kryo.register(REGISTERED.get(i), FIRST_ID + i);
+        }
+        return kryo;
+    }
+
+    /**
+     * 注册类及其字段名和类型的摘要
+     */
+    private static int schema() {
+        CRC32 crc = new CRC32();
+        for (Class<?> clazz : REGISTERED) {
+            crc.update(clazz.getName().getBytes(StandardCharsets.UTF_8));
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                Field[] fields = c.getDeclaredFields();
+                Arrays.sort(fields, Comparator.comparing(Field::getName));
+                for (Field field : fields) {
+                    if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) {
+                        continue;
+                    }
+                    crc.update((field.getName() + ":" + field.getType().getName()).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Kryo kryo = kryoPool.obtain();
+        try {
+            Output output = new Output(BUFFER_SIZE, -1);
+            output.writeByte(MAGIC);
+            output.writeInt(SCHEMA);
+            kryo.writeClassAndObject(output, value);
+            return output.toBytes();
+        } finally {
+            kryoPool.free(kryo);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        Object value = read(bytes);
+        return clazz.isInstance(value) ? clazz.cast(value) : null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> decodeList(byte[] bytes, Class<T> elementType) {
+        Object value = read(bytes);
+        return value instanceof List ? (List<T>) value : null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> clazz) {
+        Object value = read(bytes);
+        if (!(value instanceof RedisData)) {
+            return null;
+        }
+        RedisData<T> data = (RedisData<T>) value;
+        return data.getData() == null || clazz.isInstance(data.getData()) ? data : null;
+    }
+
+    private Object read(byte[] bytes) {
+        if (bytes.length < HEADER_SIZE || bytes[0] != MAGIC) {
+            return null;
+        }
+        Kryo kryo = kryoPool.obtain();
+        try {
+            Input input = new Input(bytes);
+            input.skip(1);
+            if (input.readInt() != SCHEMA) {
+                return null;
+            }
+            return kryo.readClassAndObject(input);
+        } catch (KryoException e) {
+            return null;
+        } finally {
+            kryoPool.free(kryo);
+        }
+    }
+}
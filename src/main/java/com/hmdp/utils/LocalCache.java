@@ -0,0 +1,127 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import cn.hutool.core.bean.BeanUtil;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import cn.hutool.core.bean.BeanUtil;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.hmdp.config.LocalCacheProperties;
+import com.hmdp.dto.LocalCacheStatsDTO;
+import com.hmdp.entity.RedisConstant;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进程内缓存 作为redis前面的一级缓存
+ * 每个key前缀一个Caffeine缓存（W-TinyLFU淘汰 容量有上限） 过期时间按前缀配置
+ * 删除缓存时通过redis发布订阅通知其他节点清除本地副本
+ * 缓存的对象在多个线程间共享 放入和取出时都复制一份 调用方修改拿到的对象不会影响其他线程读到的值
+ */
+@Slf4j
+@Component
+public class LocalCache {
+    private final LocalCacheProperties properties;
+    private final RedissonClient redissonClient;
+    private final Map<String, Cache<String, Object>> caches = new ConcurrentHashMap<>();
+    private RTopic topic;
+
+    public LocalCache(LocalCacheProperties properties, RedissonClient redissonClient) {
+        this.properties = properties;
+        this.redissonClient = redissonClient;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        topic = redissonClient.getTopic(RedisConstant.CACHE_INVALIDATE_TOPIC, StringCodec.INSTANCE);
+        topic.addListener(String.class, (channel, key) -> evictLocal(key));
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    public Object get(String keyPrefix, String key) {
+        if (!properties.isEnabled()) {
+            return null;
+        }
+        Object value = cache(keyPrefix).getIfPresent(key);
+        return value == null ? null : BeanUtil.copyProperties(value, value.getClass());
+    }
+
+    public void put(String keyPrefix, String key, Object value) {
+        if (!properties.isEnabled() || value == null) {
+            return;
+        }
+        cache(keyPrefix).put(key, BeanUtil.copyProperties(value, value.getClass()));
+    }
+
+    /**
+     * 清除所有节点上的本地副本
+     */
+    public void invalidate(String key) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        evictLocal(key);
+        try {
+            topic.publish(key);
+        } catch (Exception e) {
+            //广播失败时其他节点的副本会在过期后自然失效
+            log.warn("本地缓存失效消息发布失败 {}", key, e);
+        }
+    }
+
+    /**
+     * 各个本地缓存的命中/未命中/淘汰统计
+     */
+    public Map<String, LocalCacheStatsDTO> stats() {
+        Map<String, LocalCacheStatsDTO> stats = new LinkedHashMap<>();
+        caches.forEach((prefix, cache) -> {
+            CacheStats cacheStats = cache.stats();
+            LocalCacheStatsDTO dto = new LocalCacheStatsDTO();
+            dto.setSize(cache.estimatedSize());
+            dto.setHitCount(cacheStats.hitCount());
+            dto.setMissCount(cacheStats.missCount());
+            dto.setHitRate(cacheStats.hitRate());
+            dto.setEvictionCount(cacheStats.evictionCount());
+            stats.put(prefix, dto);
+        });
+        return stats;
+    }
+
+    private void evictLocal(String key) {
+        caches.forEach((prefix, cache) -> {
+            if (key.startsWith(prefix)) {
+                cache.invalidate(key);
+            }
+        });
+    }
+
+    private Cache<String, Object> cache(String keyPrefix) {
+        return caches.computeIfAbsent(keyPrefix, prefix -> {
+            LocalCacheProperties.Spec spec = properties.getPrefixes().get(prefix);
+            long maximumSize = spec != null && spec.getMaximumSize() != null
+                    ? spec.getMaximumSize() : properties.getMaximumSize();
+            long expireSeconds = spec != null && spec.getExpireSeconds() != null
+                    ? spec.getExpireSeconds() : properties.getExpireSeconds();
+            return Caffeine.newBuilder()
+                    .maximumSize(maximumSize)
+                    .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                    .recordStats()
+                    .build();
+        });
+    }
+}
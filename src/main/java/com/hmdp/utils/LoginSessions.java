@@ -0,0 +1,200 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.json.JSONObject;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 登录会话 两种模式
+ * redis: login:token:{token} -> UserDTO
+ *   读取时先查本地缓存（LocalCache的login:token:前缀） 未命中再查redis
+ *   续期合并 同一个token在一个窗口内最多续期一次 由后台线程批量用pipeline执行EXPIRE
+ * signed: 无状态签名token 见SignedTokens 校验和续签都不访问redis
+ */
+@Slf4j
+@Component
+public class LoginSessions {
+    public static final String MODE_REDIS = "redis";
+    public static final String MODE_SIGNED = "signed";
+    /**
+     * token有效期
+     */
+    private static final long TOKEN_TTL_MINUTES = 30;
+    private static final int REFRESH_BATCH_SIZE = 500;
+    @Value("${hmdp.login.refresh-window-seconds:60}")
+    private long refreshWindowSeconds;
+    @Value("${hmdp.login.refresh-flush-millis:1000}")
+    private long refreshFlushMillis;
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final LocalCache localCache;
+    private final SignedTokens signedTokens;
+    @Value("${hmdp.login.mode:redis}")
+    private String mode;
+    /**
+     * 窗口内已经续期过的token
+     */
+    private Cache<String, Boolean> refreshed;
+    /**
+     * 等待续期的token
+     */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService refreshExecutor;
+
+    public LoginSessions(RedisTemplate<String, Object> redisTemplate, StringRedisTemplate stringRedisTemplate,
+                         LocalCache localCache, SignedTokens signedTokens) {
+        this.redisTemplate = redisTemplate;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.localCache = localCache;
+        this.signedTokens = signedTokens;
+    }
+
+    @PostConstruct
+    private void init() {
+        refreshed = Caffeine.newBuilder()
+                .maximumSize(100000)
+                .expireAfterWrite(refreshWindowSeconds, TimeUnit.SECONDS)
+                .build();
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("token-refresh-", true));
+        refreshExecutor.scheduleWithFixedDelay(this::flushRefresh, refreshFlushMillis, refreshFlushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdown();
+        flushRefresh();
+    }
+
+    /**
+     * 保存登录信息 返回token
+     */
+    public String create(UserDTO userDTO) {
+        if (MODE_SIGNED.equals(mode)) {
+            return signedTokens.issue(userDTO);
+        }
+        String token = UUID.randomUUID().toString();
+        String key = RedisConstants.LOGIN_USER_KEY + token;
+        redisTemplate.opsForHash().putAll(key, BeanUtil.beanToMap(userDTO));
+        redisTemplate.expire(key, TOKEN_TTL_MINUTES, TimeUnit.MINUTES);
+        refreshed.put(token, Boolean.TRUE);
+        localCache.put(RedisConstants.LOGIN_USER_KEY, key, userDTO);
+        return token;
+    }
+
+    /**
+     * 查询登录用户 token不存在或已过期时返回null
+     * redis模式命中时登记续期 签名token快过期时同时返回续签的新token
+     */
+    public Session get(String token) {
+        if (MODE_SIGNED.equals(mode)) {
+            //只校验一次签名 续签复用解析出的payload
+            JSONObject payload = signedTokens.verify(token);
+            return payload == null ? null : new Session(signedTokens.user(payload), signedTokens.renew(payload));
+        }
+        String key = RedisConstants.LOGIN_USER_KEY + token;
+        UserDTO userDTO = (UserDTO) localCache.get(RedisConstants.LOGIN_USER_KEY, key);
+        if (userDTO == null) {
+            Map<Object, Object> userMap = redisTemplate.opsForHash().entries(key);
+            if (userMap.isEmpty()) {
+                return null;
+            }
+            userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+            localCache.put(RedisConstants.LOGIN_USER_KEY, key, userDTO);
+        }
+        //窗口内第一次访问时登记续期
+        if (refreshed.asMap().putIfAbsent(token, Boolean.TRUE) == null) {
+            pending.add(token);
+        }
+        return new Session(userDTO, null);
+    }
+
+    /**
+     * 退出登录 同时清除所有节点的本地缓存
+     */
+    public void remove(String token) {
+        if (MODE_SIGNED.equals(mode)) {
+            signedTokens.revoke(token);
+            return;
+        }
+        String key = RedisConstants.LOGIN_USER_KEY + token;
+        redisTemplate.delete(key);
+        localCache.invalidate(key);
+        refreshed.invalidate(token);
+        pending.remove(token);
+    }
+
+    /**
+     * 批量续期 每批一次pipeline
+     */
+    private void flushRefresh() {
+        try {
+            List<String> tokens = new ArrayList<>();
+            Iterator<String> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                tokens.add(iterator.next());
+                iterator.remove();
+                if (tokens.size() >= REFRESH_BATCH_SIZE || !iterator.hasNext()) {
+                    expire(tokens);
+                    tokens.clear();
+                }
+            }
+        } catch (Exception e) {
+            log.error("token续期失败", e);
+        }
+    }
+
+    private void expire(List<String> tokens) {
+        long seconds = TimeUnit.MINUTES.toSeconds(TOKEN_TTL_MINUTES);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String token : tokens) {
+                byte[] key = (RedisConstants.LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8);
+                connection.keyCommands().expire(key, seconds);
+            }
+            return null;
+        });
+    }
+
+    public static class Session {
+        private final UserDTO user;
+        /**
+         * 续签的新token 不需要续签时为null
+         */
+        private final String renewedToken;
+
+        Session(UserDTO user, String renewedToken) {
+            this.user = user;
+            this.renewedToken = renewedToken;
+        }
+
+        public UserDTO getUser() {
+            return user;
+        }
+
+        public String getRenewedToken() {
+            return renewedToken;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 基于位数组的布隆过滤器 元素为long类型的id 线程安全
+ * 位数m = -n*ln(p)/(ln2)^2 哈希次数k = m/n*ln2 使用双重哈希生成k个位置
+ */
+public class LongBloomFilter {
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashIterations;
+    private final long expectedInsertions;
+    private final double falseProbability;
+    /**
+     * 已经置为1的位数 用来估算当前的误判率
+     */
+    private final AtomicLong bitCount = new AtomicLong();
+    private final AtomicLong insertions = new AtomicLong();
+
+    public LongBloomFilter(long expectedInsertions, double falseProbability) {
+        this.expectedInsertions = Math.max(expectedInsertions, 1);
+        this.falseProbability = falseProbability;
+        long m = (long) Math.ceil(-this.expectedInsertions * Math.log(falseProbability) / (Math.log(2) * Math.log(2)));
+        this.bitSize = Math.max(64, (m + 63) / 64 * 64);
+        this.hashIterations = Math.max(1, (int) Math.round((double) bitSize / this.expectedInsertions * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (bitSize / 64));
+    }
+
+    public void add(long id) {
+        long hash = mix(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        boolean changed = false;
+        for (int i = 1; i <= hashIterations; i++) {
+            changed |= setBit(index(h1 + i * h2));
+        }
+        if (changed) {
+            insertions.incrementAndGet();
+        }
+    }
+
+    public boolean mightContain(long id) {
+        long hash = mix(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashIterations; i++) {
+            long index = index(h1 + i * h2);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按已置位的比例估算当前误判率 (bitCount/m)^k
+     */
+    public double estimatedFalseProbability() {
+        return Math.pow((double) bitCount.get() / bitSize, hashIterations);
+    }
+
+    public long getInsertions() {
+        return insertions.get();
+    }
+
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    public double getFalseProbability() {
+        return falseProbability;
+    }
+
+    public long getBitSize() {
+        return bitSize;
+    }
+
+    public int getHashIterations() {
+        return hashIterations;
+    }
+
+    private long index(int combined) {
+        return (combined & Integer.MAX_VALUE) % bitSize;
+    }
+
+    private boolean setBit(long index) {
+        int word = (int) (index >>> 6);
+        long mask = 1L << index;
+        while (true) {
+            long old = bits.get(word);
+            if ((old & mask) != 0) {
+                return false;
+            }
+            if (bits.compareAndSet(word, old, old | mask)) {
+                bitCount.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * murmur3的fmix64 打散连续的id
+     */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
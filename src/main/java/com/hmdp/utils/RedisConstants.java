@@ -5,6 +5,8 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKE_TOPIC = "login:revoke";
 
     public static final Long CACHE_NULL_TTL = 2L;
 
@@ -15,8 +17,65 @@ public class RedisConstants {
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_SOLD_OUT_TOPIC = "seckill:soldout";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    /**
+     * 分片模式下所有分片订单stream的登记集合
+     */
+    public static final String SECKILL_ORDER_STREAMS_KEY = "stream.orders.shards";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DEAD_STREAM = "stream.orders.dlq";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKE_KEY = "blog:like:";
+    public static final String BLOG_LIKE_DELTA_KEY = "blog:like:delta";
+    public static final String BLOG_LIKE_DIRTY_KEY = "blog:like:dirty";
+    public static final String BLOG_LIKE_FLUSHING_KEY = "blog:like:flushing";
+    public static final String BLOG_LIKE_FLUSH_LOCK = "lock:blog:like:flush";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String BLOG_HOT_TMP_KEY = "blog:hot:tmp";
+    /**
+     * 热门排行榜时间衰减的起点 秒 每次重建时移到当前时间
+     */
+    public static final String BLOG_HOT_EPOCH_KEY = "blog:hot:epoch";
+    /**
+     * 重建中的临时排行榜的衰减起点 存在时点赞同时写入临时排行榜
+     */
+    public static final String BLOG_HOT_TMP_EPOCH_KEY = "blog:hot:tmp:epoch";
+    public static final String BLOG_HOT_REBUILD_LOCK = "lock:blog:hot:rebuild";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_FANOUT_TASK_KEY = "feed:fanout:";
+    public static final String FEED_FANOUT_PENDING_KEY = "feed:fanout:pending";
+    public static final String FEED_FANOUT_LOCK = "lock:feed:fanout:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHORS_KEY = "feed:big-authors";
+    public static final String FEED_BIG_AUTHORS_LOCK = "lock:feed:big-authors";
+    /**
+     * 取消大V登记过程中已经提交推送的发件箱博文
+     */
+    public static final String FEED_DEMOTE_PUSHED_KEY = "feed:demote:pushed:";
+    public static final String FOLLOWS_KEY = "follows:";
+    /**
+     * 关注集合从数据库加载后的占位成员 用户id从1开始 不会冲突
+     */
+    public static final String FOLLOWS_PLACEHOLDER = "0";
+    public static final String FOLLOWS_REPAIR_LOCK = "lock:follows:repair";
+    public static final String FOLLOWS_COMMON_KEY = "follow:common:";
+    public static final String FOLLOWERS_KEY = "followers:";
+    public static final String FOLLOW_COUNT_KEY = "follow:count:";
+    public static final String FOLLOW_GRAPH_READY_KEY = "follow:graph:ready";
+    public static final String FOLLOW_GRAPH_BACKFILL_KEY = "follow:graph:backfill";
+    public static final String FOLLOW_GRAPH_BACKFILL_LOCK = "lock:follow:graph:backfill";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_UPDATE_TOPIC = "shop:geo:update";
+    public static final String SHOP_GEO_TMP_KEY = "shop:geo:tmp:";
+    public static final String SHOP_GEO_REBUILDING_KEY = "shop:geo:rebuilding";
+    /**
+     * 重建期间修改过位置的商铺id RENAME之前按数据库重新写入临时key
+     */
+    public static final String SHOP_GEO_DIRTY_KEY = "shop:geo:dirty";
+    public static final String SHOP_GEO_REBUILD_LOCK = "lock:shop:geo:rebuild";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String BLOOM_ADD_TOPIC = "bloom:add";
 }
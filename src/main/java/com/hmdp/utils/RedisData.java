@@ -4,8 +4,11 @@ import lombok.Data;
 
 import java.time.LocalDateTime;
 
+/**
+ * 逻辑过期缓存的包装 data为缓存的对象 expireTime为逻辑过期时间
+ */
 @Data
-public class RedisData {
+public class RedisData<T> {
     private LocalDateTime expireTime;
-    private Object data;
+    private T data;
 }
@@ -1,17 +1,48 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     private static final int COUNT_BITS = 32;
     private static final long BEGIN_TIME = 1704067200L;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    /**
+     * 号段用掉80%时异步预取下一个号段
+     */
+    private static final double PREFETCH_RATIO = 0.8;
+    private static final ExecutorService SEGMENT_PREFETCH_POOL = Executors.newSingleThreadExecutor(
+            ThreadUtil.newNamedThreadFactory("id-segment-", true));
     private final StringRedisTemplate stringRedisTemplate;
+    /**
+     * 号段模式 每次用INCRBY从redis取一段序列号 在本地递增分配
+     */
+    @Value("${hmdp.id.segment.enabled:false}")
+    private boolean segmentEnabled;
+    @Value("${hmdp.id.segment.step:1000}")
+    private int segmentStep;
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    /**
+     * 当天的日期字符串 跨天时才重新格式化
+     */
+    private volatile DateKey dateKey = new DateKey(Long.MIN_VALUE, null);
 
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
@@ -22,10 +53,125 @@ public class RedisIdWorker {
         //时间戳-开始时间戳
         long offset = timestamp - BEGIN_TIME;
         //获取当前日期 精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //获取当天的自增序列
-        long count = stringRedisTemplate.opsForValue().increment("incr:" + keyPrefix + ":" + date);
+        long day = Math.floorDiv(timestamp, SECONDS_PER_DAY);
+        long count;
+        if (segmentEnabled) {
+            //从本地号段中获取序列号
+            count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(day);
+        } else {
+            //获取当天的自增序列
+            count = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, day));
+        }
         //拼接id
         return offset<<COUNT_BITS | count;
     }
+
+    private String counterKey(String keyPrefix, long day) {
+        DateKey key = dateKey;
+        if (key.day != day) {
+            key = new DateKey(day, LocalDate.ofEpochDay(day).format(DATE_FORMATTER));
+            dateKey = key;
+        }
+        return "incr:" + keyPrefix + ":" + key.date;
+    }
+
+    private static class DateKey {
+        private final long day;
+        private final String date;
+
+        DateKey(long day, String date) {
+            this.day = day;
+            this.date = date;
+        }
+    }
+
+    /**
+     * 一个号段 [cursor, max]
+     */
+    private static class Segment {
+        private final long day;
+        private final AtomicLong cursor;
+        private final long max;
+        private final long prefetchAt;
+
+        Segment(long day, long min, long max, long prefetchAt) {
+            this.day = day;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /**
+     * 双号段缓冲
+     * current用完后切换到预取好的next 没有预取到时同步加载
+     * redis的INCRBY是单调的 后加载的号段一定比先加载的大 只要不切换到比当前号段小的号段 本节点的序列号就是单调递增的
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day == day) {
+                    long value = segment.cursor.getAndIncrement();
+                    if (value <= segment.max) {
+                        if (value >= segment.prefetchAt && next == null && loading.compareAndSet(false, true)) {
+                            prefetch(day);
+                        }
+                        return value;
+                    }
+                }
+                synchronized (this) {
+                    if (current == segment) {
+                        current = switchSegment(segment, day);
+                    }
+                }
+            }
+        }
+
+        private Segment switchSegment(Segment old, long day) {
+            Segment n = next;
+            next = null;
+            if (n != null && n.day == day && (old == null || old.day != day || n.cursor.get() > old.max)) {
+                return n;
+            }
+            return load(day);
+        }
+
+        private void prefetch(long day) {
+            SEGMENT_PREFETCH_POOL.submit(() -> {
+                try {
+                    Segment segment = load(day);
+                    synchronized (this) {
+                        Segment c = current;
+                        if (next == null && (c == null || c.day != day || segment.cursor.get() > c.max)) {
+                            next = segment;
+                        }
+                    }
+                } catch (Exception e) {
+                    log.warn("预取号段失败 {}", keyPrefix, e);
+                } finally {
+                    loading.set(false);
+                }
+            });
+        }
+
+        private Segment load(long day) {
+            //INCRBY incr:prefix:yyyy:MM:dd step 返回号段的最大值
+            Long max = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, day), segmentStep);
+            if (max == null) {
+                throw new IllegalStateException("获取号段失败");
+            }
+            long min = max - segmentStep + 1;
+            return new Segment(day, min, max, min + (long) (segmentStep * PREFETCH_RATIO));
+        }
+    }
 }
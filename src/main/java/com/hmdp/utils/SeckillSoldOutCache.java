@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀券本地售罄标记
+ * 脚本返回库存不足后在本地打上标记 并通过redis发布订阅通知其他节点
+ * 售罄的券直接在内存中拒绝 不再访问redis
+ * 补库存时清除标记 标记带有过期时间 即使漏掉了清除消息也会在过期后重新走一次脚本
+ * 消息格式 +voucherId 表示售罄 -voucherId 表示清除
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutCache {
+    private final RedissonClient redissonClient;
+    @Value("${hmdp.seckill.sold-out-ttl-millis:60000}")
+    private long soldOutTtlMillis;
+    /**
+     * voucherId -> 标记过期时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+    private RTopic topic;
+
+    public SeckillSoldOutCache(RedissonClient redissonClient) {
+        this.redissonClient = redissonClient;
+    }
+
+    @PostConstruct
+    private void init() {
+        topic = redissonClient.getTopic(RedisConstants.SECKILL_SOLD_OUT_TOPIC, StringCodec.INSTANCE);
+        topic.addListener(String.class, (channel, msg) -> {
+            Long voucherId = Long.valueOf(msg.substring(1));
+            if (msg.charAt(0) == '+') {
+                soldOut.put(voucherId, System.currentTimeMillis() + soldOutTtlMillis);
+            } else {
+                soldOut.remove(voucherId);
+            }
+        });
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄 只有本地第一次标记时才广播 避免售罄后的每个请求都发一次消息
+     */
+    public void markSoldOut(Long voucherId) {
+        Long old = soldOut.put(voucherId, System.currentTimeMillis() + soldOutTtlMillis);
+        if (old == null) {
+            publish("+" + voucherId);
+        }
+    }
+
+    /**
+     * 补库存后清除所有节点的标记
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        publish("-" + voucherId);
+    }
+
+    private void publish(String msg) {
+        try {
+            topic.publish(msg);
+        } catch (Exception e) {
+            //广播失败不影响下单 其他节点的标记会自然过期
+            log.warn("售罄消息发布失败 {}", msg, e);
+        }
+    }
+}
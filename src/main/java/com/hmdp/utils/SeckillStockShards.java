@@ -0,0 +1,174 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * 秒杀库存分片
+ * 分片模式下一张券的库存被拆到K个子计数器 seckill:stock:{voucherId:i}
+ * 一人一单的集合和订单消息stream按同样的方式拆分 seckill:order:{voucherId:i} stream.orders:{voucherId:i}
+ * 同一分片的库存、订单集合和stream使用相同的hash tag 落在同一个slot上 可以在同一个lua脚本中操作
+ * 分片stream登记在 stream.orders.shards 中 由订单消费者逐个读取
+ * 分片数为1时沿用原来的 seckill:stock:voucherId 单key
+ */
+@Slf4j
+@Component
+public class SeckillStockShards {
+    private final StringRedisTemplate stringRedisTemplate;
+    /**
+     * 新建秒杀券时使用的分片数
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int defaultShards;
+    /**
+     * 每张券的分片数 写入后不会再变化 本地缓存即可
+     */
+    private final Map<Long, Integer> shardCountCache = new ConcurrentHashMap<>();
+    /**
+     * 没有分片记录的券 -> 过期时间
+     * 其他节点可能稍后才写入分片数 单key的结论只缓存一小段时间
+     */
+    private final Map<Long, Long> singleKeyUntil = new ConcurrentHashMap<>();
+    private static final long SINGLE_KEY_CACHE_MILLIS = 5000;
+    /**
+     * 主分片库存耗尽、到兄弟分片扣库存期间的占位过期时间
+     */
+    public static final long RESERVE_MILLIS = 5000;
+
+    public SeckillStockShards(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public int getDefaultShards() {
+        return Math.max(defaultShards, 1);
+    }
+
+    /**
+     * 查询券的分片数 没有记录说明是单key模式
+     */
+    public int shardCount(Long voucherId) {
+        Integer cached = shardCountCache.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        Long until = singleKeyUntil.get(voucherId);
+        long now = System.currentTimeMillis();
+        if (until != null && until > now) {
+            return 1;
+        }
+        String shards = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        if (StrUtil.isBlank(shards)) {
+            singleKeyUntil.put(voucherId, now + SINGLE_KEY_CACHE_MILLIS);
+            return 1;
+        }
+        int count = Integer.parseInt(shards);
+        shardCountCache.put(voucherId, count);
+        singleKeyUntil.remove(voucherId);
+        return count;
+    }
+
+    /**
+     * 把库存平均拆到各个分片 余数分给前面的分片
+     */
+    public void initStock(Long voucherId, int stock, int shards) {
+        if (shards <= 1) {
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            singleKeyUntil.put(voucherId, System.currentTimeMillis() + SINGLE_KEY_CACHE_MILLIS);
+            return;
+        }
+        Map<String, String> stocks = new HashMap<>(shards);
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stocks.put(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+        //各分片key不在同一个slot 逐个写入
+        stocks.forEach((key, value) -> stringRedisTemplate.opsForValue().set(key, value));
+        //先建好各分片的stream和消费者组 再登记给消费者
+        for (int i = 0; i < shards; i++) {
+            createGroupIfAbsent(streamKey(voucherId, i));
+        }
+        stringRedisTemplate.opsForSet().add(RedisConstants.SECKILL_ORDER_STREAMS_KEY,
+                IntStream.range(0, shards).mapToObj(i -> streamKey(voucherId, i)).toArray(String[]::new));
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCountCache.put(voucherId, shards);
+        singleKeyUntil.remove(voucherId);
+    }
+
+    /**
+     * 补充库存 分片模式下同样平均分到各个分片
+     */
+    public void addStock(Long voucherId, int count) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_STOCK_KEY + voucherId, count);
+            return;
+        }
+        for (int i = 0; i < shards; i++) {
+            int shardCount = count / shards + (i < count % shards ? 1 : 0);
+            if (shardCount > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i), shardCount);
+            }
+        }
+    }
+
+    /**
+     * 用户的主分片 一人一单的判断始终在主分片上进行
+     */
+    public int homeShard(Long userId, int shards) {
+        return (int) Math.floorMod(userId, (long) shards);
+    }
+
+    public String stockKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public String orderKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 主分片上的临时占位 与订单集合使用相同的hash tag
+     */
+    public String reserveKey(Long voucherId, int shard, Long userId) {
+        return orderKey(voucherId, shard) + ":" + userId;
+    }
+
+    public String streamKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_STREAM + ":{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 所有分片的订单stream
+     */
+    public Set<String> orderStreams() {
+        Set<String> streams = stringRedisTemplate.opsForSet().members(RedisConstants.SECKILL_ORDER_STREAMS_KEY);
+        return streams == null ? Collections.emptySet() : streams;
+    }
+
+    /**
+     * 创建消费者组 XGROUP CREATE stream g1 0 MKSTREAM
+     * 组已经存在时redis返回BUSYGROUP 忽略即可
+     */
+    public void createGroupIfAbsent(String stream) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    stream.getBytes(StandardCharsets.UTF_8),
+                    RedisConstants.SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            log.debug("消费者组已存在: {} {}", stream, e.getMessage());
+        }
+    }
+}
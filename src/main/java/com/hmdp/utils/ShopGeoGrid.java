@@ -0,0 +1,210 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 商铺的本地网格索引 每个类型一张网格 按经纬度划分成固定大小的格子
+ * 查询时从中心格子开始一圈一圈向外扫描 剩余格子的最近距离超过已找到的第limit个结果时停止
+ * 结果按(距离, id)排序 游标为上一页最后一条的(距离, id) 下一页不需要重新扫描和丢弃前面的结果
+ * 格子内容写时复制 读不加锁
+ */
+public class ShopGeoGrid {
+    /**
+     * 与redis GEO使用相同的地球半径 距离与GEOSEARCH一致
+     */
+    private static final double EARTH_RADIUS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+    private static final Comparator<Hit> ORDER = Comparator.comparingDouble(Hit::getDistance).thenComparingLong(Hit::getId);
+    /**
+     * 格子边长 度
+     */
+    private final double cellDegrees;
+    private final Map<Long, Map<Long, Entry[]>> grids = new ConcurrentHashMap<>();
+    private final Map<Long, Entry> shops = new ConcurrentHashMap<>();
+
+    /**
+     * @param cellMeters 格子边长 米 按纬度方向换算成度
+     */
+    public ShopGeoGrid(double cellMeters) {
+        this.cellDegrees = cellMeters / METERS_PER_DEGREE;
+    }
+
+    public int size() {
+        return shops.size();
+    }
+
+    /**
+     * 新增或移动商铺 类型变化时从原来的网格中删除
+     */
+    public synchronized void put(long id, long typeId, double x, double y) {
+        Entry old = shops.get(id);
+        if (old != null) {
+            if (old.typeId == typeId && old.x == x && old.y == y) {
+                return;
+            }
+            removeFromCell(old);
+        }
+        Entry entry = new Entry(id, typeId, x, y);
+        shops.put(id, entry);
+        grids.computeIfAbsent(typeId, t -> new ConcurrentHashMap<>())
+                .merge(cellKey(cell(x), cell(y)), new Entry[]{entry}, (cur, add) -> {
+                    Entry[] next = Arrays.copyOf(cur, cur.length + 1);
+                    next[cur.length] = entry;
+                    return next;
+                });
+    }
+
+    public synchronized void remove(long id) {
+        Entry old = shops.remove(id);
+        if (old != null) {
+            removeFromCell(old);
+        }
+    }
+
+    private void removeFromCell(Entry old) {
+        Map<Long, Entry[]> grid = grids.get(old.typeId);
+        if (grid == null) {
+            return;
+        }
+        grid.computeIfPresent(cellKey(cell(old.x), cell(old.y)), (key, cur) -> {
+            Entry[] next = Arrays.stream(cur).filter(e -> e.id != old.id).toArray(Entry[]::new);
+            return next.length == 0 ? null : next;
+        });
+    }
+
+    /**
+     * 查询半径内的商铺
+     * @param afterDistance 游标 上一页最后一条的距离 第一页传-1
+     * @param afterId 游标 上一页最后一条的id
+     * @return 按(距离, id)升序排列的最多limit条结果
+     */
+    public List<Hit> search(long typeId, double x, double y, double radius, double afterDistance, long afterId, int limit) {
+        Map<Long, Entry[]> grid = grids.get(typeId);
+        if (grid == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        //大顶堆 保留当前最近的limit条 容量按需增长 不按limit预先分配
+        PriorityQueue<Hit> heap = new PriorityQueue<>(ORDER.reversed());
+        int cx = cell(x);
+        int cy = cell(y);
+        double latMeters = cellDegrees * METERS_PER_DEGREE;
+        double diagonal = latMeters * Math.sqrt(2);
+        for (int k = 0; ; k++) {
+            //第k圈格子与中心点的最近距离 经度方向按这一圈能到达的最高纬度换算
+            double maxLat = Math.min(89, Math.abs(y) + (k + 1) * cellDegrees);
+            //大圆距离略短于沿纬线的距离 留一点余量
+            double lower = Math.max(0, k - 1) * Math.min(latMeters, latMeters * Math.cos(Math.toRadians(maxLat))) * 0.999;
+            if (lower > radius) {
+                break;
+            }
+            if (heap.size() == limit && lower > heap.peek().distance) {
+                break;
+            }
+            //整圈都在游标之前 跳过
+            if ((k + 1) * diagonal < afterDistance) {
+                continue;
+            }
+            for (int dx = -k; dx <= k; dx++) {
+                //上下两条边取整行 左右两条边去掉角
+                int step = (dx == -k || dx == k) ? 1 : 2 * k;
+                for (int dy = -k; dy <= k; dy += step) {
+                    Entry[] entries = grid.get(cellKey(cx + dx, cy + dy));
+                    if (entries == null || (afterDistance > 0 && maxDistance(cx + dx, cy + dy, x, y) < afterDistance)) {
+                        continue;
+                    }
+                    for (Entry entry : entries) {
+                        double distance = distance(x, y, entry.x, entry.y);
+                        if (distance > radius || distance < afterDistance
+                                || (distance == afterDistance && entry.id <= afterId)) {
+                            continue;
+                        }
+                        Hit hit = new Hit(entry.id, distance);
+                        if (heap.size() < limit) {
+                            heap.add(hit);
+                        } else if (ORDER.compare(hit, heap.peek()) < 0) {
+                            heap.poll();
+                            heap.add(hit);
+                        }
+                    }
+                }
+            }
+        }
+        List<Hit> hits = new ArrayList<>(heap);
+        hits.sort(ORDER);
+        return hits;
+    }
+
+    /**
+     * 格子内的点到(x, y)的最远距离的上界 按平面近似 经度方向取格子内最低纬度换算 留一点余量
+     */
+    private double maxDistance(int cx, int cy, double x, double y) {
+        double minX = cx * cellDegrees;
+        double minY = cy * cellDegrees;
+        double dx = Math.max(Math.abs(minX - x), Math.abs(minX + cellDegrees - x));
+        double dy = Math.max(Math.abs(minY - y), Math.abs(minY + cellDegrees - y));
+        double lat = Math.min(Math.abs(minY), Math.abs(minY + cellDegrees));
+        if (minY < 0 && minY + cellDegrees > 0) {
+            lat = 0;
+        }
+        dx *= Math.cos(Math.toRadians(lat));
+        return Math.sqrt(dx * dx + dy * dy) * METERS_PER_DEGREE * 1.001;
+    }
+
+    /**
+     * 半正矢公式 与redis GEO的geohashGetDistance相同
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2.0 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    private int cell(double degrees) {
+        return (int) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    private static class Entry {
+        private final long id;
+        private final long typeId;
+        private final double x;
+        private final double y;
+
+        Entry(long id, long typeId, double x, double y) {
+            this.id = id;
+            this.typeId = typeId;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    public static class Hit {
+        private final long id;
+        private final double distance;
+
+        public Hit(long id, double distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+    }
+}
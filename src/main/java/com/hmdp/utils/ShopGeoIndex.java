@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * 商铺地理位置的本地索引
+ * 每个节点启动时按id顺序分批从tb_shop加载到本地网格 之后定时全量重建 重建完成后整体替换
+ * 本节点新增/修改的商铺通过redis发布订阅同步给其他节点
+ * 加载完成之前返回null 由调用方走redis GEO
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex {
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private final RedissonClient redissonClient;
+    @Value("${hmdp.shop.geo.local-index:true}")
+    private boolean enabled;
+    @Value("${hmdp.shop.geo.cell-meters:500}")
+    private double cellMeters;
+    @Value("${hmdp.shop.geo.reload-interval-minutes:60}")
+    private long reloadIntervalMinutes;
+    /**
+     * (afterId, limit) -> 大于afterId的前limit个商铺 只需要id type_id x y
+     */
+    private volatile BiFunction<Long, Integer, List<Shop>> loader;
+    private volatile ShopGeoGrid grid;
+    private volatile ShopGeoGrid rebuilding;
+    /**
+     * 重建期间修改过的商铺的最新位置 替换前重新写入新网格 防止被重建读到的旧数据覆盖
+     */
+    private final Map<Long, Shop> changedDuringReload = new ConcurrentHashMap<>();
+    private RTopic topic;
+    private ScheduledExecutorService reloadExecutor;
+
+    public ShopGeoIndex(RedissonClient redissonClient) {
+        this.redissonClient = redissonClient;
+    }
+
+    public void register(BiFunction<Long, Integer, List<Shop>> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * 查询半径内的商铺 按(距离, id)排序
+     * @return 索引还没有加载完成时返回null
+     */
+    public List<ShopGeoGrid.Hit> search(long typeId, double x, double y, double radius,
+                                        double afterDistance, long afterId, int limit) {
+        ShopGeoGrid current = grid;
+        if (!enabled || current == null) {
+            return null;
+        }
+        return current.search(typeId, x, y, radius, afterDistance, afterId, limit);
+    }
+
+    /**
+     * 新增或修改商铺位置 同时通知其他节点
+     */
+    public void put(Shop shop) {
+        if (!enabled || shop == null || shop.getId() == null || shop.getTypeId() == null
+                || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        putLocal(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY());
+        try {
+            topic.publish(shop.getId() + "," + shop.getTypeId() + "," + shop.getX() + "," + shop.getY());
+        } catch (Exception e) {
+            //其他节点会在下一次重建时补上
+            log.warn("商铺位置消息发布失败 {}", shop.getId(), e);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled || loader == null) {
+            return;
+        }
+        topic = redissonClient.getTopic(RedisConstants.SHOP_GEO_UPDATE_TOPIC, StringCodec.INSTANCE);
+        topic.addListener(String.class, (channel, msg) -> {
+            String[] parts = msg.split(",");
+            putLocal(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                    Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+        });
+        reloadExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("shop-geo-reload-", true));
+        reloadExecutor.scheduleWithFixedDelay(this::reload, 0, reloadIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (reloadExecutor != null) {
+            reloadExecutor.shutdown();
+        }
+    }
+
+    private void putLocal(long id, long typeId, double x, double y) {
+        //先读rebuilding 替换之后rebuilding为null时grid已经是新网格
+        ShopGeoGrid next = rebuilding;
+        ShopGeoGrid current = grid;
+        if (current != null) {
+            current.put(id, typeId, x, y);
+        }
+        if (next != null) {
+            changedDuringReload.put(id, new Shop().setId(id).setTypeId(typeId).setX(x).setY(y));
+            next.put(id, typeId, x, y);
+        }
+    }
+
+    /**
+     * 全量重建 重建期间的修改同时写入新旧两个网格 替换前再重新写入一次
+     */
+    private void reload() {
+        ShopGeoGrid next = new ShopGeoGrid(cellMeters);
+        changedDuringReload.clear();
+        rebuilding = next;
+        try {
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = loader.apply(lastId, LOAD_BATCH_SIZE);
+                for (Shop shop : shops) {
+                    if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                        next.put(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY());
+                    }
+                    lastId = shop.getId();
+                }
+                if (shops.size() < LOAD_BATCH_SIZE) {
+                    break;
+                }
+            }
+            //加载可能读到修改之前的数据 之后的修改由putLocal直接写入新网格
+            changedDuringReload.values().forEach(shop -> next.put(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY()));
+            grid = next;
+            log.info("商铺位置索引加载完成 {} 家商铺", next.size());
+        } catch (Exception e) {
+            log.error("商铺位置索引加载失败", e);
+        } finally {
+            rebuilding = null;
+            changedDuringReload.clear();
+        }
+    }
+}
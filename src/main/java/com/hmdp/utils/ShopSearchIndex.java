@@ -0,0 +1,238 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * 商铺名称搜索的本地索引
+ * 启动时优先读取快照文件 再从数据库增量同步快照之后修改的商铺 没有快照时按id顺序分批全量加载
+ * 本节点的修改立即写入 其他节点的修改由定时增量同步按update_time读取
+ * 定时全量重建以清理已删除的商铺 重建完成后整体替换
+ * 加载完成之前返回null 由调用方查询数据库
+ */
+@Slf4j
+@Component
+public class ShopSearchIndex {
+    private static final int LOAD_BATCH_SIZE = 1000;
+    @Value("${hmdp.shop.search.local-index:true}")
+    private boolean enabled;
+    @Value("${hmdp.shop.search.snapshot-path:data/shop-search.snapshot}")
+    private String snapshotPath;
+    @Value("${hmdp.shop.search.sync-interval-seconds:60}")
+    private long syncIntervalSeconds;
+    @Value("${hmdp.shop.search.sync-overlap-seconds:60}")
+    private long syncOverlapSeconds;
+    @Value("${hmdp.shop.search.reload-interval-hours:24}")
+    private long reloadIntervalHours;
+    /**
+     * (afterId, limit) -> 大于afterId的前limit个商铺 只需要id name area
+     */
+    private volatile BiFunction<Long, Integer, List<Shop>> loader;
+    /**
+     * since -> update_time不早于since的商铺
+     */
+    private volatile Function<LocalDateTime, List<Shop>> changedLoader;
+    private volatile ShopTextIndex index;
+    private volatile ShopTextIndex rebuilding;
+    /**
+     * 重建期间本节点修改过的商铺 替换前重新写入新索引 防止被重建读到的旧数据覆盖
+     */
+    private final Map<Long, Shop> changedDuringReload = new ConcurrentHashMap<>();
+    /**
+     * 已同步到的时间 毫秒
+     */
+    private volatile long syncedUntil;
+    private ScheduledExecutorService syncExecutor;
+
+    public void register(BiFunction<Long, Integer, List<Shop>> loader, Function<LocalDateTime, List<Shop>> changedLoader) {
+        this.loader = loader;
+        this.changedLoader = changedLoader;
+    }
+
+    /**
+     * 按名称或商圈搜索
+     * @return 索引还没有加载完成时返回null
+     */
+    public ShopTextIndex.SearchResult search(String query, int offset, int limit) {
+        ShopTextIndex current = index;
+        if (!enabled || current == null) {
+            return null;
+        }
+        return current.search(query, offset, limit);
+    }
+
+    /**
+     * 本节点新增或修改商铺
+     */
+    public void put(Shop shop) {
+        if (!enabled || shop == null || shop.getId() == null) {
+            return;
+        }
+        //先读rebuilding 替换之后rebuilding为null时index已经是新索引
+        ShopTextIndex next = rebuilding;
+        ShopTextIndex current = index;
+        if (current != null) {
+            current.put(shop.getId(), shop.getName(), shop.getArea());
+        }
+        if (next != null) {
+            changedDuringReload.put(shop.getId(), shop);
+            next.put(shop.getId(), shop.getName(), shop.getArea());
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled || loader == null) {
+            return;
+        }
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("shop-search-sync-", true));
+        syncExecutor.execute(this::init);
+        syncExecutor.scheduleWithFixedDelay(this::sync, syncIntervalSeconds, syncIntervalSeconds, TimeUnit.SECONDS);
+        syncExecutor.scheduleWithFixedDelay(this::reload, reloadIntervalHours, reloadIntervalHours, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+        }
+        if (index != null) {
+            writeSnapshot();
+        }
+    }
+
+    private void init() {
+        ShopTextIndex restored = readSnapshot();
+        if (restored == null) {
+            reload();
+            return;
+        }
+        index = restored;
+        sync();
+    }
+
+    /**
+     * 同步update_time在上次同步时间之后的商铺 往前多读一段时间 防止漏掉提交较晚的事务
+     */
+    private void sync() {
+        ShopTextIndex current = index;
+        if (current == null) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            LocalDateTime since = LocalDateTime.ofInstant(
+                    Instant.ofEpochMilli(syncedUntil - TimeUnit.SECONDS.toMillis(syncOverlapSeconds)), ZoneId.systemDefault());
+            List<Shop> shops = changedLoader.apply(since);
+            for (Shop shop : shops) {
+                current.put(shop.getId(), shop.getName(), shop.getArea());
+            }
+            syncedUntil = now;
+            if (!shops.isEmpty()) {
+                log.debug("商铺搜索索引同步 {} 家商铺", shops.size());
+            }
+        } catch (Exception e) {
+            log.error("商铺搜索索引同步失败", e);
+        }
+    }
+
+    /**
+     * 全量重建 重建期间本节点的修改同时写入新旧两个索引 替换前再重新写入一次 完成后写快照
+     */
+    private void reload() {
+        ShopTextIndex next = new ShopTextIndex();
+        changedDuringReload.clear();
+        rebuilding = next;
+        try {
+            long now = System.currentTimeMillis();
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = loader.apply(lastId, LOAD_BATCH_SIZE);
+                for (Shop shop : shops) {
+                    next.put(shop.getId(), shop.getName(), shop.getArea());
+                    lastId = shop.getId();
+                }
+                if (shops.size() < LOAD_BATCH_SIZE) {
+                    break;
+                }
+            }
+            //加载可能读到修改之前的数据 之后的修改由put直接写入新索引
+            changedDuringReload.values().forEach(shop -> next.put(shop.getId(), shop.getName(), shop.getArea()));
+            index = next;
+            syncedUntil = now;
+            log.info("商铺搜索索引加载完成 {} 家商铺", next.size());
+        } catch (Exception e) {
+            log.error("商铺搜索索引加载失败", e);
+            return;
+        } finally {
+            rebuilding = null;
+            changedDuringReload.clear();
+        }
+        writeSnapshot();
+    }
+
+    private ShopTextIndex readSnapshot() {
+        Path path = Paths.get(snapshotPath);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ShopTextIndex restored = new ShopTextIndex();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            long until = restored.readSnapshot(in);
+            if (until < 0) {
+                log.warn("商铺搜索索引快照格式不兼容 重新加载 {}", path);
+                return null;
+            }
+            syncedUntil = until;
+            log.info("从快照恢复商铺搜索索引 {} 家商铺", restored.size());
+            return restored;
+        } catch (IOException e) {
+            log.warn("读取商铺搜索索引快照失败 重新加载 {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * 先写临时文件再替换 避免留下写了一半的快照
+     */
+    private void writeSnapshot() {
+        Path path = Paths.get(snapshotPath).toAbsolutePath();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                index.writeSnapshot(out, syncedUntil);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("写入商铺搜索索引快照失败 {}", path, e);
+        }
+    }
+}
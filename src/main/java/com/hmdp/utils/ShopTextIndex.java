@@ -0,0 +1,263 @@
+package com.hmdp.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 商铺名称和商圈的倒排索引
+ * 去掉空白和标点并转小写后 按单字和相邻两个字切分 中文店名不需要分词
+ * 查询时取查询词的所有二元组的倒排表求交集 再用子串匹配去掉误命中 支持前缀和中间匹配
+ * 按匹配位置打分 名称完全相同 > 名称前缀 > 名称包含 > 商圈前缀 > 商圈包含
+ */
+public class ShopTextIndex {
+    private static final int SNAPSHOT_MAGIC = 0x53544958;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final Comparator<Match> ORDER = Comparator.comparingInt(Match::getScore).reversed()
+            .thenComparingInt(Match::getNameLength)
+            .thenComparingLong(Match::getId);
+    private final Map<Long, Doc> docs = new ConcurrentHashMap<>();
+    private final Map<String, Set<Long>> postings = new ConcurrentHashMap<>();
+
+    public int size() {
+        return docs.size();
+    }
+
+    /**
+     * 新增或修改 名称和商圈都没变时直接返回
+     */
+    public synchronized void put(long id, String name, String area) {
+        Doc doc = new Doc(id, name == null ? "" : name, area == null ? "" : area);
+        Doc old = docs.get(id);
+        if (old != null) {
+            if (old.name.equals(doc.name) && old.area.equals(doc.area)) {
+                return;
+            }
+            for (String token : old.tokens) {
+                if (!doc.tokens.contains(token)) {
+                    removePosting(token, id);
+                }
+            }
+        }
+        docs.put(id, doc);
+        for (String token : doc.tokens) {
+            postings.computeIfAbsent(token, t -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    public synchronized void remove(long id) {
+        Doc old = docs.remove(id);
+        if (old != null) {
+            old.tokens.forEach(token -> removePosting(token, id));
+        }
+    }
+
+    private void removePosting(String token, long id) {
+        postings.computeIfPresent(token, (t, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    /**
+     * 查询 只对前offset+limit条排序
+     * @return 当前页的商铺id和匹配总数
+     */
+    public SearchResult search(String query, int offset, int limit) {
+        String q = normalize(query);
+        if (q.isEmpty()) {
+            return new SearchResult(Collections.emptyList(), 0);
+        }
+        List<Set<Long>> lists = new ArrayList<>();
+        for (String token : tokens(q, q.length() == 1)) {
+            Set<Long> ids = postings.get(token);
+            if (ids == null) {
+                return new SearchResult(Collections.emptyList(), 0);
+            }
+            lists.add(ids);
+        }
+        //从最短的倒排表开始求交集
+        lists.sort(Comparator.comparingInt(Set::size));
+        int k = offset + limit;
+        //容量按需增长 不按请求的页码预先分配
+        PriorityQueue<Match> heap = new PriorityQueue<>(ORDER.reversed());
+        long total = 0;
+        for (Long id : lists.get(0)) {
+            boolean all = true;
+            for (int i = 1; i < lists.size() && all; i++) {
+                all = lists.get(i).contains(id);
+            }
+            Doc doc = all ? docs.get(id) : null;
+            if (doc == null) {
+                continue;
+            }
+            int score = score(doc, q);
+            if (score == 0) {
+                continue;
+            }
+            total++;
+            Match match = new Match(id, score, doc.normalizedName.length());
+            if (heap.size() < k) {
+                heap.add(match);
+            } else if (k > 0 && ORDER.compare(match, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(match);
+            }
+        }
+        List<Match> matches = new ArrayList<>(heap);
+        matches.sort(ORDER);
+        List<Long> ids = new ArrayList<>(Math.max(0, matches.size() - offset));
+        for (int i = offset; i < matches.size(); i++) {
+            ids.add(matches.get(i).id);
+        }
+        return new SearchResult(ids, total);
+    }
+
+    private static int score(Doc doc, String q) {
+        int index = doc.normalizedName.indexOf(q);
+        if (index == 0) {
+            return doc.normalizedName.length() == q.length() ? 100 : 80;
+        }
+        if (index > 0) {
+            //越靠前分数越高
+            return 60 - Math.min(index, 20);
+        }
+        index = doc.normalizedArea.indexOf(q);
+        if (index == 0) {
+            return 30;
+        }
+        return index > 0 ? 20 : 0;
+    }
+
+    /**
+     * 快照 只保存名称和商圈 加载时重新切分
+     */
+    public void writeSnapshot(DataOutputStream out, long syncedUntil) throws IOException {
+        List<Doc> snapshot = new ArrayList<>(docs.values());
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeLong(syncedUntil);
+        out.writeInt(snapshot.size());
+        for (Doc doc : snapshot) {
+            out.writeLong(doc.id);
+            out.writeUTF(doc.name);
+            out.writeUTF(doc.area);
+        }
+    }
+
+    /**
+     * 读取快照到当前索引
+     * @return 快照中记录的同步时间 格式不对时返回-1
+     */
+    public long readSnapshot(DataInputStream in) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+            return -1;
+        }
+        long syncedUntil = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            put(in.readLong(), in.readUTF(), in.readUTF());
+        }
+        return syncedUntil;
+    }
+
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 二元组 withUnigrams为true时加上单字
+     */
+    private static Set<String> tokens(String normalized, boolean withUnigrams) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (int i = 0; i < normalized.length(); i++) {
+            if (withUnigrams) {
+                tokens.add(normalized.substring(i, i + 1));
+            }
+            if (i + 1 < normalized.length()) {
+                tokens.add(normalized.substring(i, i + 2));
+            }
+        }
+        return tokens;
+    }
+
+    private static class Doc {
+        private final long id;
+        private final String name;
+        private final String area;
+        private final String normalizedName;
+        private final String normalizedArea;
+        private final Set<String> tokens;
+
+        Doc(long id, String name, String area) {
+            this.id = id;
+            this.name = name;
+            this.area = area;
+            this.normalizedName = normalize(name);
+            this.normalizedArea = normalize(area);
+            this.tokens = tokens(normalizedName, true);
+            this.tokens.addAll(tokens(normalizedArea, true));
+        }
+    }
+
+    private static class Match {
+        private final long id;
+        private final int score;
+        private final int nameLength;
+
+        Match(long id, int score, int nameLength) {
+            this.id = id;
+            this.score = score;
+            this.nameLength = nameLength;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        int getScore() {
+            return score;
+        }
+
+        int getNameLength() {
+            return nameLength;
+        }
+    }
+
+    public static class SearchResult {
+        private final List<Long> ids;
+        private final long total;
+
+        SearchResult(List<Long> ids, long total) {
+            this.ids = ids;
+            this.total = total;
+        }
+
+        public List<Long> getIds() {
+            return ids;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+    }
+}
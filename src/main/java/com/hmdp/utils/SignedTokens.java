@@ -0,0 +1,217 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 无状态签名token base64url(payload).base64url(HMAC-SHA256(payload))
+ * payload中包含UserDTO的字段、token编号jti和过期时间exp 校验只在本地完成 不访问redis
+ * 退出登录的jti写入redis的login:revoked（score为失效时间）并广播 各节点在本地维护吊销名单
+ */
+@Slf4j
+@Component
+public class SignedTokens {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    @Value("${hmdp.login.mode:redis}")
+    private String mode;
+    @Value("${hmdp.login.secret:}")
+    private String secret;
+    @Value("${hmdp.login.signed-ttl-minutes:30}")
+    private long ttlMinutes;
+    @Value("${hmdp.login.revoke-sync-seconds:60}")
+    private long revokeSyncSeconds;
+    /**
+     * Mac不是线程安全的
+     */
+    private ThreadLocal<Mac> macs;
+    /**
+     * 本地吊销名单 jti -> 失效时间
+     */
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+    private RTopic topic;
+    private ScheduledExecutorService syncExecutor;
+
+    public SignedTokens(StringRedisTemplate stringRedisTemplate, RedissonClient redissonClient) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redissonClient = redissonClient;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!LoginSessions.MODE_SIGNED.equals(mode)) {
+            return;
+        }
+        if (StrUtil.isBlank(secret)) {
+            throw new IllegalStateException("签名token模式需要配置 hmdp.login.secret");
+        }
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        topic = redissonClient.getTopic(RedisConstants.LOGIN_REVOKE_TOPIC, StringCodec.INSTANCE);
+        topic.addListener(String.class, (channel, msg) -> {
+            int index = msg.lastIndexOf(':');
+            revoked.put(msg.substring(0, index), Long.valueOf(msg.substring(index + 1)));
+        });
+        //定时从redis同步 补上漏掉的广播 清除已经失效的记录
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("token-revoke-", true));
+        syncExecutor.scheduleWithFixedDelay(this::syncRevoked, 0, revokeSyncSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 签发新token
+     */
+    public String issue(UserDTO userDTO) {
+        return sign(IdUtil.fastSimpleUUID(), userDTO);
+    }
+
+    /**
+     * 校验token 签名错误、过期或已吊销时返回null 否则返回payload 供user和renew使用 不需要再次校验签名
+     */
+    public JSONObject verify(String token) {
+        return payload(token);
+    }
+
+    /**
+     * 从校验通过的payload中取出用户信息
+     */
+    public UserDTO user(JSONObject payload) {
+        UserDTO userDTO = new UserDTO();
+        userDTO.setId(payload.getLong("id"));
+        userDTO.setNickName(payload.getStr("nickName"));
+        userDTO.setIcon(payload.getStr("icon"));
+        return userDTO;
+    }
+
+    /**
+     * 校验通过的payload剩余有效期不足一半时用同一个jti签发新token 否则返回null
+     */
+    public String renew(JSONObject payload) {
+        long remaining = payload.getLong("exp") - System.currentTimeMillis();
+        if (remaining > TimeUnit.MINUTES.toMillis(ttlMinutes) / 2) {
+            return null;
+        }
+        return sign(payload.getStr("jti"), user(payload));
+    }
+
+    /**
+     * 吊销token 同一个jti续签出的token最晚在吊销时间+有效期后过期 吊销记录保留到那时
+     */
+    public void revoke(String token) {
+        JSONObject payload = payload(token);
+        if (payload == null) {
+            return;
+        }
+        String jti = payload.getStr("jti");
+        long expireAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(ttlMinutes);
+        revoked.put(jti, expireAt);
+        stringRedisTemplate.opsForZSet().add(RedisConstants.LOGIN_REVOKED_KEY, jti, expireAt);
+        try {
+            topic.publish(jti + ":" + expireAt);
+        } catch (Exception e) {
+            //其他节点会在下一次同步时补上
+            log.warn("token吊销消息发布失败 {}", jti, e);
+        }
+    }
+
+    private String sign(String jti, UserDTO userDTO) {
+        JSONObject payload = new JSONObject();
+        payload.set("jti", jti);
+        payload.set("id", userDTO.getId());
+        payload.set("nickName", userDTO.getNickName());
+        payload.set("icon", userDTO.getIcon());
+        payload.set("exp", System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(ttlMinutes));
+        byte[] bytes = payload.toString().getBytes(StandardCharsets.UTF_8);
+        return ENCODER.encodeToString(bytes) + "." + ENCODER.encodeToString(macs.get().doFinal(bytes));
+    }
+
+    /**
+     * 校验签名、过期时间和吊销名单 通过后返回payload
+     */
+    private JSONObject payload(String token) {
+        int index = token.indexOf('.');
+        if (index <= 0) {
+            return null;
+        }
+        byte[] bytes;
+        byte[] signature;
+        try {
+            bytes = DECODER.decode(token.substring(0, index));
+            signature = DECODER.decode(token.substring(index + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(macs.get().doFinal(bytes), signature)) {
+            return null;
+        }
+        JSONObject payload = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        Long exp = payload.getLong("exp");
+        if (exp == null || exp < System.currentTimeMillis() || revoked.containsKey(payload.getStr("jti"))) {
+            return null;
+        }
+        return payload;
+    }
+
+    private void syncRevoked() {
+        try {
+            long now = System.currentTimeMillis();
+            stringRedisTemplate.opsForZSet().removeRangeByScore(RedisConstants.LOGIN_REVOKED_KEY, 0, now);
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .rangeByScoreWithScores(RedisConstants.LOGIN_REVOKED_KEY, now, Double.MAX_VALUE);
+            if (tuples != null) {
+                for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                    if (tuple.getValue() != null && tuple.getScore() != null) {
+                        revoked.put(tuple.getValue(), tuple.getScore().longValue());
+                    }
+                }
+            }
+            revoked.values().removeIf(expireAt -> expireAt < now);
+        } catch (Exception e) {
+            log.error("同步token吊销名单失败", e);
+        }
+    }
+}
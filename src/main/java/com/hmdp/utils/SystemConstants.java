@@ -5,4 +5,8 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    /**
+     * 按页码分页时允许的最大页码 页码越大排序时要保留的结果越多
+     */
+    public static final int MAX_PAGE_NUM = 100;
 }
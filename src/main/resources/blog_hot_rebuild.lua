@@ -0,0 +1,24 @@
+-- 按点赞记录计算一批博文的热度写入临时排行榜 与like.lua的增量使用相同的权重
+-- 每篇博文的计算和写入是原子的 之后的点赞由like.lua同时写入临时排行榜
+-- KEYS[1] 临时排行榜 KEYS[2..n+1] 各博文的blog:like:{blogId}
+-- ARGV[1] 衰减起点 秒 ARGV[2] 半衰期 秒 0表示不衰减 ARGV[3] 权重指数的上限
+-- ARGV[2i] ARGV[2i+1] 第i篇博文(i从2开始 与KEYS对应)的id和没有点赞记录时的热度
+local epoch = tonumber(ARGV[1])
+local halfLife = tonumber(ARGV[2])
+local maxExponent = tonumber(ARGV[3])
+for i = 2, #KEYS do
+    local score
+    if redis.call('exists', KEYS[i]) == 0 then
+        score = tonumber(ARGV[2 * i + 1])
+    elseif halfLife <= 0 then
+        score = redis.call('zcard', KEYS[i])
+    else
+        score = 0
+        local likes = redis.call('zrange', KEYS[i], 0, -1, 'withscores')
+        for j = 2, #likes, 2 do
+            score = score + 2 ^ math.min((tonumber(likes[j]) / 1000 - epoch) / halfLife, maxExponent)
+        end
+    end
+    redis.call('zadd', KEYS[1], score, ARGV[2 * i])
+end
+return #KEYS - 1
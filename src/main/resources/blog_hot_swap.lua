@@ -0,0 +1,10 @@
+-- 重建完成后替换热门排行榜 同时切换衰减起点 停止向临时排行榜双写
+-- KEYS[1] 临时排行榜 KEYS[2] 热门排行榜 KEYS[3] 排行榜的衰减起点 KEYS[4] 临时排行榜的衰减起点
+local epoch = redis.call('get', KEYS[4])
+redis.call('del', KEYS[4])
+if not epoch or redis.call('exists', KEYS[1]) == 0 then
+    return 0
+end
+redis.call('rename', KEYS[1], KEYS[2])
+redis.call('set', KEYS[3], epoch)
+return 1
@@ -0,0 +1,8 @@
+-- 取消大V登记后删除发件箱和推送记录
+-- KEYS[1] 大V集合 KEYS[2] feed:outbox:{authorId} KEYS[3] feed:demote:pushed:{authorId} ARGV[1] authorId
+-- 发布博文时先登记大V再写发件箱 作者重新成为大V时保留发件箱
+if redis.call('sismember', KEYS[1], ARGV[1]) == 1 then
+    return 0
+end
+redis.call('del', KEYS[2], KEYS[3])
+return 1
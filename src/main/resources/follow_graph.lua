@@ -0,0 +1,14 @@
+-- 关注/取消关注 维护粉丝集合和关注数/粉丝数
+-- KEYS[1] followers:{followUserId} KEYS[2] follow:count:{followUserId} KEYS[3] follow:count:{userId}
+-- ARGV[1] userId ARGV[2] 关注时间 ARGV[3] 1关注 -1取消关注
+-- 粉丝集合确实发生变化时才修改计数 重复执行不会重复计数 返回1表示有变化
+if ARGV[3] == '1' then
+    if redis.call('zadd', KEYS[1], 'NX', ARGV[2], ARGV[1]) == 0 then
+        return 0
+    end
+elseif redis.call('zrem', KEYS[1], ARGV[1]) == 0 then
+    return 0
+end
+redis.call('hincrby', KEYS[2], 'followers', ARGV[3])
+redis.call('hincrby', KEYS[3], 'following', ARGV[3])
+return 1
@@ -0,0 +1,41 @@
+-- 点赞/取消点赞 同时记录待写回数据库的增量 更新热门排行榜
+-- KEYS[1] blog:like:{blogId} KEYS[2] 增量hash KEYS[3] 脏博文集合 KEYS[4] 热门排行榜 KEYS[5] 排行榜的衰减起点
+-- KEYS[6] 重建中的临时排行榜 KEYS[7] 临时排行榜的衰减起点 只在重建期间存在
+-- ARGV[1] userId ARGV[2] 当前时间戳 毫秒 ARGV[3] blogId ARGV[4] 半衰期 秒 0表示不衰减 ARGV[5] 权重指数的上限
+-- 一次点赞的权重由点赞时间决定 取消点赞时按原来的点赞时间减去同样的权重
+-- 返回1表示点赞 0表示取消点赞
+local function weight(epochKey, time)
+    local halfLife = tonumber(ARGV[4])
+    if halfLife <= 0 then
+        return 1
+    end
+    -- 排行榜还没有建立时以当前时间为起点
+    local epoch = tonumber(redis.call('get', epochKey) or math.floor(tonumber(ARGV[2]) / 1000))
+    return 2 ^ math.min((tonumber(time) / 1000 - epoch) / halfLife, tonumber(ARGV[5]))
+end
+local function incr(hotKey, epochKey, time, sign)
+    local score = redis.call('zincrby', hotKey, sign * weight(epochKey, time), ARGV[3])
+    -- 浮点误差可能略小于0
+    if sign < 0 and tonumber(score) < 0 then
+        redis.call('zadd', hotKey, 0, ARGV[3])
+    end
+end
+local function update(time, sign)
+    incr(KEYS[4], KEYS[5], time, sign)
+    if redis.call('exists', KEYS[7]) == 1 then
+        incr(KEYS[6], KEYS[7], time, sign)
+    end
+end
+local likedAt = redis.call('zscore', KEYS[1], ARGV[1])
+if likedAt then
+    redis.call('zrem', KEYS[1], ARGV[1])
+    redis.call('hincrby', KEYS[2], ARGV[3], -1)
+    redis.call('sadd', KEYS[3], ARGV[3])
+    update(likedAt, -1)
+    return 0
+end
+redis.call('zadd', KEYS[1], ARGV[2], ARGV[1])
+redis.call('hincrby', KEYS[2], ARGV[3], 1)
+redis.call('sadd', KEYS[3], ARGV[3])
+update(ARGV[2], 1)
+return 1
@@ -0,0 +1,15 @@
+-- 从脏博文集合中取出一批 把它们的增量移到写回中的hash
+-- 写回中的hash在数据库更新成功后才删除 上一次没有写回成功的增量会和这一批一起返回
+-- KEYS[1] 脏博文集合 KEYS[2] 增量hash KEYS[3] 写回中的hash
+-- ARGV[1] 每批数量
+local ids = redis.call('spop', KEYS[1], ARGV[1])
+for _, id in ipairs(ids) do
+    local delta = redis.call('hget', KEYS[2], id)
+    if delta then
+        redis.call('hdel', KEYS[2], id)
+        if tonumber(delta) ~= 0 then
+            redis.call('hincrby', KEYS[3], id, delta)
+        end
+    end
+end
+return redis.call('hgetall', KEYS[3])
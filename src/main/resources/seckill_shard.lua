@@ -0,0 +1,32 @@
+-- 分片模式下的秒杀脚本 在用户的主分片上执行
+-- KEYS[1] 主分片库存key seckill:stock:{voucherId:i}
+-- KEYS[2] 主分片订单key seckill:order:{voucherId:i}
+-- KEYS[3] 主分片订单消息stream stream.orders:{voucherId:i}
+-- KEYS[4] 主分片上的临时占位key seckill:order:{voucherId:i}:userId
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local streamKey = KEYS[3]
+local reserveKey = KEYS[4]
+-- ARGV 优惠券id 用户id 订单id 占位过期时间（毫秒）
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local orderId = ARGV[3]
+local reserveMillis = ARGV[4]
+
+-- 1. 判断用户是否下单 或者正在兄弟分片上扣库存
+if (redis.call('sismember', orderKey, userId) == 1 or redis.call('exists', reserveKey) == 1) then
+    -- 重复下单，返回2
+    return 2
+end
+-- 2. 主分片库存充足 扣减库存后才记录一人一单 并发送消息
+local stock = tonumber(redis.call('get', stockKey))
+if (stock ~= nil and stock > 0) then
+    redis.call('incrby', stockKey, -1)
+    redis.call('sadd', orderKey, userId)
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+    return 0
+end
+-- 3. 主分片库存不足 写入带过期时间的占位 防止同一用户并发到其他分片扣库存
+-- 调用方在兄弟分片扣减成功后才记录一人一单 中途崩溃时占位自动过期 不会留下没有订单的名额
+redis.call('set', reserveKey, orderId, 'PX', reserveMillis)
+return 3
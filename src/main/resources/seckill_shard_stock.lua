@@ -0,0 +1,18 @@
+-- 分片模式下到兄弟分片扣库存 主分片上已经写入临时占位
+-- KEYS[1] 兄弟分片库存key seckill:stock:{voucherId:j}
+-- KEYS[2] 兄弟分片订单消息stream stream.orders:{voucherId:j}
+local stockKey = KEYS[1]
+local streamKey = KEYS[2]
+-- ARGV 优惠券id 用户id 订单id
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local orderId = ARGV[3]
+
+local stock = tonumber(redis.call('get', stockKey))
+if (stock ~= nil and stock > 0) then
+    redis.call('incrby', stockKey, -1)
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+    return 0
+end
+-- 库存不足，返回1
+return 1
@@ -0,0 +1,96 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.KryoCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编解码对比 json / kryo
+ * 数据取自 hmdp.sql 中 tb_shop 的第一条记录
+ * 运行: mvn test-compile 后以main方法启动 或 java -cp ... com.hmdp.benchmark.CacheCodecBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheCodecBenchmark {
+    @Param({"json", "kryo"})
+    private String codecName;
+    private CacheCodec codec;
+    private Shop shop;
+    private RedisData<Shop> logical;
+    private byte[] shopBytes;
+    private byte[] logicalBytes;
+
+    @Setup
+    public void setup() {
+        codec = JsonCacheCodec.NAME.equals(codecName) ? new JsonCacheCodec() : new KryoCacheCodec();
+        shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,"
+                        + "https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        logical = new RedisData<>();
+        logical.setData(shop);
+        logical.setExpireTime(LocalDateTime.now().plusMinutes(30));
+        shopBytes = codec.encode(shop);
+        logicalBytes = codec.encode(logical);
+    }
+
+    @Benchmark
+    public byte[] encodeShop() {
+        return codec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop decodeShop() {
+        return codec.decode(shopBytes, Shop.class);
+    }
+
+    @Benchmark
+    public byte[] encodeLogical() {
+        return codec.encode(logical);
+    }
+
+    @Benchmark
+    public RedisData<Shop> decodeLogical() {
+        return codec.decodeLogical(logicalBytes, Shop.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CacheCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
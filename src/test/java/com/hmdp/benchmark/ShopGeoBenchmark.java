@@ -0,0 +1,132 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.ShopGeoGrid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.domain.geo.GeoReference;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按距离分页查询商铺 本地网格索引 / redis GEOSEARCH
+ * 在杭州附近20km范围内随机生成商铺 查询半径5km 每页5条
+ * grid: 按页码查询 只保留前current*5条
+ * gridCursor: 从上一页最后一条的(距离, id)继续
+ * redis: 与原来的实现相同 GEOSEARCH ... COUNT current*5 需要本地6379端口的redis
+ * 运行: mvn test-compile 后以main方法启动 或 java -cp ... com.hmdp.benchmark.ShopGeoBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShopGeoBenchmark {
+    private static final String KEY = "benchmark:shop:geo";
+    private static final double X = 120.149192;
+    private static final double Y = 30.316078;
+    private static final double RADIUS = 5000;
+    private static final int PAGE_SIZE = 5;
+    @Param({"grid", "redis"})
+    private String engine;
+    @Param({"10000", "100000"})
+    private int shops;
+    @Param({"1", "20"})
+    private int current;
+    private ShopGeoGrid grid;
+    private double cursorDistance;
+    private long cursorId;
+    private LettuceConnectionFactory connectionFactory;
+    private StringRedisTemplate redisTemplate;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        double[][] points = new double[shops][];
+        for (int i = 0; i < shops; i++) {
+            points[i] = new double[]{X + (random.nextDouble() - 0.5) * 0.4, Y + (random.nextDouble() - 0.5) * 0.4};
+        }
+        if ("redis".equals(engine)) {
+            connectionFactory = new LettuceConnectionFactory("localhost", 6379);
+            connectionFactory.afterPropertiesSet();
+            redisTemplate = new StringRedisTemplate(connectionFactory);
+            redisTemplate.delete(KEY);
+            Map<String, Point> members = new HashMap<>();
+            for (int i = 0; i < shops; i++) {
+                members.put(String.valueOf(i + 1), new Point(points[i][0], points[i][1]));
+            }
+            redisTemplate.opsForGeo().add(KEY, members);
+            return;
+        }
+        grid = new ShopGeoGrid(500);
+        for (int i = 0; i < shops; i++) {
+            grid.put(i + 1, 1, points[i][0], points[i][1]);
+        }
+        //上一页最后一条作为游标
+        if (current > 1) {
+            List<ShopGeoGrid.Hit> previous = grid.search(1, X, Y, RADIUS, -1, 0, (current - 1) * PAGE_SIZE);
+            ShopGeoGrid.Hit last = previous.get(previous.size() - 1);
+            cursorDistance = last.getDistance();
+            cursorId = last.getId();
+        } else {
+            cursorDistance = -1;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (connectionFactory != null) {
+            redisTemplate.delete(KEY);
+            connectionFactory.destroy();
+        }
+    }
+
+    @Benchmark
+    public Object page() {
+        if (grid != null) {
+            List<ShopGeoGrid.Hit> hits = grid.search(1, X, Y, RADIUS, -1, 0, current * PAGE_SIZE);
+            return hits.subList(Math.min((current - 1) * PAGE_SIZE, hits.size()), hits.size());
+        }
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = redisTemplate.opsForGeo().search(KEY,
+                GeoReference.fromCoordinate(X, Y), new Distance(RADIUS),
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(current * PAGE_SIZE));
+        return results.getContent().subList(Math.min((current - 1) * PAGE_SIZE, results.getContent().size()),
+                results.getContent().size());
+    }
+
+    @Benchmark
+    public Object pageByCursor() {
+        if (grid == null) {
+            //redis没有游标 与按页码查询相同
+            return page();
+        }
+        return grid.search(1, X, Y, RADIUS, cursorDistance, cursorId, PAGE_SIZE);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ShopGeoBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheCodecProperties;
+import com.hmdp.config.LocalCacheProperties;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 同一个key的并发未命中只查询一次数据库 redis用内存map模拟
+ */
+class CacheClientTest {
+    private static final String PREFIX = "cache:shop::";
+    private static final int THREADS = 32;
+    private final Map<String, String> strings = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> bytes = new ConcurrentHashMap<>();
+    private CacheClient cacheClient;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> stringOps = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(stringOps);
+        when(stringOps.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class)))
+                .thenAnswer(inv -> strings.putIfAbsent(inv.getArgument(0), inv.getArgument(1)) == null);
+        when(stringRedisTemplate.delete(anyString())).thenAnswer(inv -> strings.remove(inv.<String>getArgument(0)) != null);
+
+        RedisTemplate<String, byte[]> bytesRedisTemplate = mock(RedisTemplate.class);
+        ValueOperations<String, byte[]> bytesOps = mock(ValueOperations.class);
+        when(bytesRedisTemplate.opsForValue()).thenReturn(bytesOps);
+        when(bytesOps.get(any())).thenAnswer(inv -> bytes.get(inv.<String>getArgument(0)));
+        doAnswer(inv -> bytes.put(inv.getArgument(0), inv.getArgument(1)))
+                .when(bytesOps).set(anyString(), any(byte[].class), anyLong(), any(TimeUnit.class));
+
+        cacheClient = new CacheClient(stringRedisTemplate, bytesRedisTemplate,
+                new LocalCache(new LocalCacheProperties(), null), new CacheCodecs(new CacheCodecProperties()));
+    }
+
+    @Test
+    void concurrentMissesLoadOnce() throws Exception {
+        assertLoadedOnce(100);
+    }
+
+    /**
+     * 数据库查询比加载线程等待锁的时间还长 等待的线程也不能超时后去查数据库
+     */
+    @Test
+    void slowLoadStillLoadsOnce() throws Exception {
+        assertLoadedOnce(1500);
+    }
+
+    private void assertLoadedOnce(long loadMillis) throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Shop>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return cacheClient.queryWithThrough(PREFIX, 1L, Shop.class, id -> {
+                        loads.incrementAndGet();
+                        try {
+                            Thread.sleep(loadMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return new Shop().setId(id).setName("shop");
+                    }, 30L, TimeUnit.MINUTES);
+                }));
+            }
+            start.countDown();
+            for (Future<Shop> future : futures) {
+                assertEquals(1L, future.get(10, TimeUnit.SECONDS).getId());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+    }
+}
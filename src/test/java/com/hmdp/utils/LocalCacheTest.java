@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.LocalCacheProperties;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 本地缓存中的对象不会被调用方修改
+ */
+class LocalCacheTest {
+    private static final String PREFIX = "cache:shop::";
+
+    @Test
+    void callersCannotMutateCachedValue() {
+        LocalCacheProperties properties = new LocalCacheProperties();
+        properties.setEnabled(true);
+        LocalCache localCache = new LocalCache(properties, null);
+
+        Shop shop = new Shop().setId(1L).setName("shop");
+        localCache.put(PREFIX, PREFIX + 1, shop);
+        shop.setName("changed");
+
+        Shop hit = (Shop) localCache.get(PREFIX, PREFIX + 1);
+        assertEquals("shop", hit.getName());
+        hit.setName("changed");
+        assertEquals("shop", ((Shop) localCache.get(PREFIX, PREFIX + 1)).getName());
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 与暴力排序逐页对比 随机插入、移动、修改类型和删除商铺
+ */
+class ShopGeoGridTest {
+    private static final double X = 120.149192;
+    private static final double Y = 30.316078;
+    private static final int TYPES = 3;
+    private static final int PAGE_SIZE = 5;
+
+    @Test
+    void pagesMatchBruteForce() {
+        Random random = new Random(42);
+        for (double cellMeters : new double[]{100, 500, 3000}) {
+            ShopGeoGrid grid = new ShopGeoGrid(cellMeters);
+            Map<Long, double[]> shops = new HashMap<>();
+            for (long id = 1; id <= 2000; id++) {
+                put(grid, shops, id, random);
+            }
+            for (int round = 0; round < 20; round++) {
+                //移动、修改类型、删除一部分商铺
+                for (int i = 0; i < 200; i++) {
+                    long id = 1 + random.nextInt(2200);
+                    if (random.nextInt(10) == 0) {
+                        grid.remove(id);
+                        shops.remove(id);
+                    } else {
+                        put(grid, shops, id, random);
+                    }
+                }
+                double x = X + (random.nextDouble() - 0.5) * 0.2;
+                double y = Y + (random.nextDouble() - 0.5) * 0.2;
+                double radius = 500 + random.nextDouble() * 5000;
+                long typeId = 1 + random.nextInt(TYPES);
+                assertPages(grid, bruteForce(shops, typeId, x, y, radius), typeId, x, y, radius);
+            }
+        }
+    }
+
+    @Test
+    void samePointOrderedById() {
+        ShopGeoGrid grid = new ShopGeoGrid(500);
+        Map<Long, double[]> shops = new HashMap<>();
+        for (long id = 30; id >= 1; id--) {
+            grid.put(id, 1, X, Y);
+            shops.put(id, new double[]{1, X, Y});
+        }
+        assertPages(grid, bruteForce(shops, 1, X, Y, 5000), 1, X, Y, 5000);
+    }
+
+    private static void put(ShopGeoGrid grid, Map<Long, double[]> shops, long id, Random random) {
+        long typeId = 1 + random.nextInt(TYPES);
+        double x = X + (random.nextDouble() - 0.5) * 0.3;
+        double y = Y + (random.nextDouble() - 0.5) * 0.3;
+        grid.put(id, typeId, x, y);
+        shops.put(id, new double[]{typeId, x, y});
+    }
+
+    private static List<ShopGeoGrid.Hit> bruteForce(Map<Long, double[]> shops, long typeId, double x, double y, double radius) {
+        List<ShopGeoGrid.Hit> hits = new ArrayList<>();
+        shops.forEach((id, shop) -> {
+            if ((long) shop[0] != typeId) {
+                return;
+            }
+            double distance = ShopGeoGrid.distance(x, y, shop[1], shop[2]);
+            if (distance <= radius) {
+                hits.add(new ShopGeoGrid.Hit(id, distance));
+            }
+        });
+        hits.sort(Comparator.comparingDouble(ShopGeoGrid.Hit::getDistance).thenComparingLong(ShopGeoGrid.Hit::getId));
+        return hits;
+    }
+
+    /**
+     * 按游标翻完所有页 同时对比按页码取前current*PAGE_SIZE条的结果
+     */
+    private static void assertPages(ShopGeoGrid grid, List<ShopGeoGrid.Hit> expected, long typeId, double x, double y, double radius) {
+        double afterDistance = -1;
+        long afterId = 0;
+        for (int start = 0; ; start += PAGE_SIZE) {
+            List<ShopGeoGrid.Hit> page = grid.search(typeId, x, y, radius, afterDistance, afterId, PAGE_SIZE);
+            List<ShopGeoGrid.Hit> want = expected.subList(Math.min(start, expected.size()),
+                    Math.min(start + PAGE_SIZE, expected.size()));
+            assertHits(want, page);
+            if (start < 20 * PAGE_SIZE) {
+                List<ShopGeoGrid.Hit> top = grid.search(typeId, x, y, radius, -1, 0, start + PAGE_SIZE);
+                assertHits(expected.subList(0, Math.min(start + PAGE_SIZE, expected.size())), top);
+            }
+            if (page.size() < PAGE_SIZE) {
+                return;
+            }
+            ShopGeoGrid.Hit last = page.get(page.size() - 1);
+            afterDistance = last.getDistance();
+            afterId = last.getId();
+        }
+    }
+
+    private static void assertHits(List<ShopGeoGrid.Hit> expected, List<ShopGeoGrid.Hit> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            assertEquals(expected.get(i).getDistance(), actual.get(i).getDistance());
+        }
+    }
+}